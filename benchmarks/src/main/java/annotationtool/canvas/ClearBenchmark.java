@@ -0,0 +1,64 @@
+package annotationtool.canvas;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Clearing the canvas, and undoing a clear on top of a long history, which
+ * has to bring back everything that was under it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ClearBenchmark {
+
+  @Param({"1920x1080", "3840x2160"})
+  public String screen;
+
+  @Param({"100", "1000"})
+  public int historyLength;
+
+  @Param({"tiled", "image"})
+  public String surface;
+
+  private Surface canvas;
+  private History history;
+  private final ShapeDef clear = ShapeDef.clear(Scene.CLEAR_PAINT);
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[] size = Scene.size(screen);
+    canvas = Scene.surface(surface, size[0], size[1]);
+    history = Scene.history(canvas, historyLength, "Medium", "pen",
+        Checkpoints.fromProperties(), 11);
+  }
+
+  @Benchmark
+  public Surface clear() {
+    clear.drawOn(canvas);
+    return canvas;
+  }
+
+  @Benchmark
+  public Surface clearThenUndo() {
+    clear.drawOn(canvas);
+    history.push(clear, canvas);
+    history.undo();
+    history.render(canvas);
+    return canvas;
+  }
+}
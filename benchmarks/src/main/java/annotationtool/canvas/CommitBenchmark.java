@@ -0,0 +1,83 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Committing a finished stroke: drawing it into the main image and pushing
+ * it onto the history, which every so often also takes a checkpoint.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CommitBenchmark {
+
+  private static final int STROKES = 256;
+
+  @Param({"1920x1080", "3840x2160"})
+  public String screen;
+
+  @Param({"Thin", "Medium", "Thick", "Huge"})
+  public String stroke;
+
+  @Param({"pen", "highlighter"})
+  public String paint;
+
+  @Param({"tiled", "image"})
+  public String surface;
+
+  private Surface canvas;
+  private ShapeDef[] shapes;
+  private int next;
+  private History history;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[] size = Scene.size(screen);
+    canvas = Scene.surface(surface, size[0], size[1]);
+    BasicStroke bs = Scene.stroke(stroke);
+    SplittableRandom rnd = new SplittableRandom(42);
+    shapes = new ShapeDef[STROKES];
+    for (int i = 0; i < STROKES; i++) {
+      Color c = Scene.paint(paint, i % 4);
+      shapes[i] = Scene.strokeDef(bs, c, Scene.scribble(rnd, size[0], size[1], 120));
+    }
+  }
+
+  // a fresh history each iteration keeps the stacks from growing without end
+  @Setup(Level.Iteration)
+  public void newHistory() {
+    history = History.fromProperties(canvas.width(), canvas.height(),
+        Scene.CLEAR_PAINT);
+  }
+
+  @Benchmark
+  public ShapeDef drawAndPush() {
+    ShapeDef s = shapes[next++ & (STROKES - 1)];
+    s.drawOn(canvas);
+    return history.push(s, canvas);
+  }
+
+  @Benchmark
+  public Surface drawOnly() {
+    shapes[next++ & (STROKES - 1)].drawOn(canvas);
+    return canvas;
+  }
+}
@@ -0,0 +1,80 @@
+package annotationtool.canvas;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a picture onto the canvas: reading it from a JPEG file, shrinking
+ * it to fit the screen and turning it into the raster the history keeps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageLoadBenchmark {
+
+  @Param({"1920x1080", "3840x2160"})
+  public String screen;
+
+  // a typical phone photo, and one that already fits
+  @Param({"4032x3024", "1280x720"})
+  public String picture;
+
+  private int width, height;
+  private BufferedImage loaded;
+  private Path file;
+
+  @Setup
+  public void setUp() throws IOException {
+    int[] size = Scene.size(screen);
+    width = size[0];
+    height = size[1];
+    int[] pic = Scene.size(picture);
+    loaded = new BufferedImage(pic[0], pic[1], BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = loaded.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, Color.ORANGE, pic[0], pic[1], Color.BLUE));
+    g.fillRect(0, 0, pic[0], pic[1]);
+    g.dispose();
+    file = Files.createTempFile("annotate-bench-", ".jpg");
+    ImageIO.write(loaded, "jpg", file.toFile());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /** The whole load as the tool does it, decoding big pictures subsampled. */
+  @Benchmark
+  public StoredImage readFitAndStore() throws IOException {
+    return new StoredImage(ImageScaler.read(file, width, height, percent -> { }));
+  }
+
+  @Benchmark
+  public StoredImage scaleAndStore() {
+    Image fitted = ImageScaler.fitWithin(loaded, width, height);
+    return new StoredImage(fitted);
+  }
+}
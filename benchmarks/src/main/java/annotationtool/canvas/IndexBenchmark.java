@@ -0,0 +1,84 @@
+package annotationtool.canvas;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the strokes under the eraser in a long history, and erasing one
+ * and undoing it, which redraws only the area the stroke covered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class IndexBenchmark {
+
+  @Param({"3840x2160"})
+  public String screen;
+
+  @Param({"Thin", "Thick"})
+  public String stroke;
+
+  @Param({"5000", "50000"})
+  public int historyLength;
+
+  @Param({"tiled", "image"})
+  public String surface;
+
+  private Surface canvas;
+  private History history;
+  private float[] probes;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[] size = Scene.size(screen);
+    canvas = Scene.surface(surface, size[0], size[1]);
+    history = Scene.history(canvas, historyLength, stroke, "pen",
+        new Checkpoints(25, 256L * 1024 * 1024), 7);
+    SplittableRandom rnd = new SplittableRandom(11);
+    probes = new float[2 * 1024];
+    for (int i = 0; i < probes.length; i += 2) {
+      probes[i] = (float) rnd.nextDouble(size[0]);
+      probes[i + 1] = (float) rnd.nextDouble(size[1]);
+    }
+  }
+
+  private int probe() {
+    next = (next + 2) % probes.length;
+    return next;
+  }
+
+  /** What the eraser finds at a point, as the tool asks on every drag. */
+  @Benchmark
+  public int[] hitTest() {
+    int p = probe();
+    return history.strokesAt(probes[p], probes[p + 1], 6);
+  }
+
+  /** Erasing the strokes at a point and undoing it again. */
+  @Benchmark
+  public Surface eraseAndUndo() {
+    int p = probe();
+    int[] hits = history.strokesAt(probes[p], probes[p + 1], 6);
+    if (hits.length > 0) {
+      history.push(ShapeDef.erase(hits), canvas);
+      history.renderChange(canvas, history.undo(), false);
+    }
+    return canvas;
+  }
+}
@@ -0,0 +1,99 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What one drag event costs while a stroke is being drawn: extending the live
+ * stroke and copying the changed area to a stand-in for the window, as
+ * {@code paint} does with the dirty rectangle as its clip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LiveStrokeBenchmark {
+
+  private static final int SAMPLES = 400;
+
+  @Param({"1920x1080", "3840x2160"})
+  public String screen;
+
+  @Param({"Thin", "Medium", "Thick", "Huge"})
+  public String stroke;
+
+  @Param({"pen", "highlighter"})
+  public String paint;
+
+  @Param({"tiled", "image"})
+  public String surface;
+
+  private Surface main, scratch;
+  private BufferedImage window;
+  private Graphics2D windowGraphics;
+  private BasicStroke bs;
+  private Color color;
+  private float[] samples;
+  private int next;
+  private LiveStroke live;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[] size = Scene.size(screen);
+    main = Scene.surface(surface, size[0], size[1]);
+    scratch = Scene.surface(surface, size[0], size[1]);
+    window = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+    windowGraphics = window.createGraphics();
+    bs = Scene.stroke(stroke);
+    color = Scene.paint(paint, 1);
+    samples = Scene.scribble(new SplittableRandom(3), size[0], size[1], SAMPLES);
+    live = new LiveStroke(scratch, main, bs, color, samples[0], samples[1]);
+    next = 1;
+  }
+
+  // a stroke never gets much longer than this, so start a new one rather
+  // than measure ever growing bookkeeping
+  private void restartIfDone() {
+    if (next == SAMPLES) {
+      live.finish(main);
+      live = new LiveStroke(scratch, null, bs, color, samples[0], samples[1]);
+      next = 1;
+    }
+  }
+
+  @Benchmark
+  public Rectangle drag() {
+    restartIfDone();
+    Rectangle dirty = live.lineTo(samples[2 * next], samples[2 * next + 1]);
+    next++;
+    if (dirty != null) {
+      scratch.paintTo(windowGraphics, dirty);
+    }
+    return dirty;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    windowGraphics.dispose();
+  }
+}
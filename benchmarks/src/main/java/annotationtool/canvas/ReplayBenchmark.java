@@ -0,0 +1,73 @@
+package annotationtool.canvas;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Undo and redo, which redraw the canvas from the history. With a checkpoint
+ * interval of 0 every replay starts from a blank canvas, which is the worst
+ * case and shows what the checkpoints save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ReplayBenchmark {
+
+  @Param({"1920x1080", "3840x2160"})
+  public String screen;
+
+  @Param({"Medium", "Huge"})
+  public String stroke;
+
+  @Param({"pen", "highlighter"})
+  public String paint;
+
+  @Param({"100", "1000", "5000"})
+  public int historyLength;
+
+  @Param({"0", "25"})
+  public int checkpointInterval;
+
+  @Param({"tiled", "image"})
+  public String surface;
+
+  private Surface canvas;
+  private History history;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[] size = Scene.size(screen);
+    canvas = Scene.surface(surface, size[0], size[1]);
+    history = Scene.history(canvas, historyLength, stroke, paint,
+        new Checkpoints(checkpointInterval, 256L * 1024 * 1024), 7);
+  }
+
+  /** One undo and redo as the tool does them, redrawing what they uncover. */
+  @Benchmark
+  public Surface undo() {
+    history.renderChange(canvas, history.undo(), false);
+    history.renderChange(canvas, history.redo(), true);
+    return canvas;
+  }
+
+  /** Redrawing the current state, as after the backing image was lost. */
+  @Benchmark
+  public Surface render() {
+    history.render(canvas);
+    return canvas;
+  }
+}
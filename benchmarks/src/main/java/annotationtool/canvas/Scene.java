@@ -0,0 +1,103 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+
+/**
+ * Canvases and strokes for the benchmarks, built from the same tools the
+ * controller offers. Everything is seeded so that every run, and every fork
+ * of a run, draws exactly the same thing.
+ */
+final class Scene {
+
+  static final Color CLEAR_PAINT = new Color(0, 0, 0, 0);
+
+  private Scene() {
+  }
+
+  /** Parses a screen size such as {@code 1920x1080}. */
+  static int[] size(String screen) {
+    int x = screen.indexOf('x');
+    return new int[] {
+        Integer.parseInt(screen.substring(0, x)),
+        Integer.parseInt(screen.substring(x + 1))};
+  }
+
+  /** {@code tiled}, or {@code image} for one big raster. */
+  static Surface surface(String kind, int width, int height) {
+    return switch (kind) {
+      case "tiled" -> new TiledSurface(width, height);
+      case "image" -> new ImageSurface(
+          new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+      default -> throw new IllegalArgumentException("No surface kind " + kind);
+    };
+  }
+
+  static BasicStroke stroke(String name) {
+    return Tools.stroke(name);
+  }
+
+  /** {@code pen} or {@code highlighter}. */
+  static Color paint(String kind, int index) {
+    return switch (kind) {
+      case "pen" -> Tools.penColors().get(index);
+      case "highlighter" -> Tools.highlighterColors().get(index);
+      default -> throw new IllegalArgumentException("No paint kind " + kind);
+    };
+  }
+
+  /**
+   * A hand-drawn looking wander of {@code count} mouse samples a few pixels
+   * apart, kept inside the canvas. Returned as interleaved x,y values.
+   */
+  static float[] scribble(SplittableRandom rnd, int width, int height, int count) {
+    float[] pts = new float[2 * count];
+    float x = (float) rnd.nextDouble(width);
+    float y = (float) rnd.nextDouble(height);
+    double heading = rnd.nextDouble(2 * Math.PI);
+    for (int i = 0; i < count; i++) {
+      heading += rnd.nextDouble(-0.3, 0.3);
+      double step = rnd.nextDouble(1, 6);
+      x += (float) (step * Math.cos(heading));
+      y += (float) (step * Math.sin(heading));
+      if (x < 0 || x >= width) {
+        heading = Math.PI - heading;
+        x = Math.clamp(x, 0, width - 1);
+      }
+      if (y < 0 || y >= height) {
+        heading = -heading;
+        y = Math.clamp(y, 0, height - 1);
+      }
+      pts[2 * i] = x;
+      pts[2 * i + 1] = y;
+    }
+    return pts;
+  }
+
+  /** A committed stroke, simplified the same way the tool does it. */
+  static ShapeDef strokeDef(BasicStroke stroke, Color paint, float[] samples) {
+    float[] pts = samples.clone();
+    int count = StrokeSimplifier.simplify(pts, pts.length / 2,
+        StrokeSimplifier.tolerance(stroke));
+    return new ShapeDef(stroke, paint, StrokeSimplifier.toPath(pts, count), null);
+  }
+
+  /** A history of {@code length} strokes drawn on {@code canvas} as it goes. */
+  static History history(Surface canvas, int length, String strokeName,
+      String paintKind, Checkpoints checkpoints, long seed) {
+    int w = canvas.width();
+    int h = canvas.height();
+    History history = new History(w, h, CLEAR_PAINT, checkpoints, Long.MAX_VALUE);
+    BasicStroke stroke = stroke(strokeName);
+    SplittableRandom rnd = new SplittableRandom(seed);
+    for (int i = 0; i < length; i++) {
+      Color paint = paint(paintKind, i % 4);
+      ShapeDef s = strokeDef(stroke, paint, scribble(rnd, w, h, 60));
+      s.drawOn(canvas);
+      history.push(s, canvas);
+    }
+    return history;
+  }
+}
@@ -1,5 +1,11 @@
 package annotationtool;
 
+import annotationtool.canvas.CanvasEngine;
+import annotationtool.canvas.ImageSurface;
+import annotationtool.canvas.Session;
+import annotationtool.canvas.Surface;
+import annotationtool.canvas.TiledSurface;
+import annotationtool.metrics.Metrics;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.ClipboardOwner;
@@ -8,74 +14,68 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 public final class AnnotationTool extends JFrame {
 
-  private record ShapeDef(Stroke stroke, Paint paint, Shape shape, Image img) {
-  }
-
-  private final Image backingMain;
-  private final Image backingScratch;
+  private VolatileBacking accelerated; // null on the software path
+  private BufferStrategy strategy; // null if frames are drawn through paint()
   private final Color clearPaint = POINTER_MODE ?
       new Color(0, 0, 0, 255) :
       new Color(0, 0, 0, 0);
 
-  private Paint paint;
-  private Stroke stroke;
-
-  private final Stroke blockOutStroke;
-  private final Path2D.Float blockOutShape;
-
-  private final Deque<ShapeDef> undoStack = new ArrayDeque<>();
-  private final Deque<ShapeDef> redoStack = new ArrayDeque<>();
-
-  private int saveImageIndex = 0;
+  private SwingWorker<BufferedImage, Void> loading; // picture being read, if any
+  private final MetricsOverlay overlay = new MetricsOverlay(this);
+  // when the oldest mouse event not yet on screen was posted, 0 for none
+  private long inputWhen;
+  // mouse samples are applied to the drawing a frame's worth at a time
+  private final InputBuffer input = new InputBuffer();
+  private final InputBuffer.Sink applySample = this::applySample;
+  private Rectangle inputDirty; // changed by the samples applied this frame
+  private long inputNanos; // when the samples were applied, for the pointer trail
+  private final FramePacer pacer;
+  private final PointerTrail trail = new PointerTrail();
+  private boolean laser = POINTER_MODE; // the mouse draws a fading trail, not strokes
+  private boolean pointing; // the stroke under way is going into the trail
+
+  private final CanvasEngine canvas;
+  private final Session session; // the pen chosen, and what is done with it
+
+  private ImageSaver imageSaver; // created on first save
+  private Runnable afterFirstPaint; // the rest of startup, once the canvas is showing
+  private ScreenRecorder recorder; // while recording
 
   public AnnotationTool(int x, int y, int w, int h, String iconFile, int iconX, int iconY) {
 
     super("Drawing Frame");
     GraphicsDevice gDevice = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
     boolean fullScreenOK = gDevice.isFullScreenSupported();
-    System.out.println("FullScreen? " + fullScreenOK);
+    Metrics.log("FullScreen? " + fullScreenOK);
     setUndecorated(true);
 
 //    setExtendedState(JFrame.MAXIMIZED_BOTH);
 //    setOpacity(0.5F);
 //    setOpacity(0); // makes entire window and contents invisible?
 
-    Toolkit toolkit = Toolkit.getDefaultToolkit();
-
-    try {
-      InputStream imageStream = this.getClass().getResourceAsStream(iconFile);
-      System.out.println("Stream is " + imageStream);
-      Image image = ImageIO.read(imageStream);
-      Cursor pencilCursor = toolkit.createCustomCursor(image, new Point(iconX, iconY), iconFile);
-      setCursor(pencilCursor);
-    } catch (IOException ioe) {
-      ioe.printStackTrace(System.err);
-    }
+    // decoding the cursor starts up ImageIO, which takes longer than showing
+    // the canvas, so it is done in the background; that also has ImageIO
+    // ready by the time anything is saved or loaded
+    Thread.ofVirtual().name("cursor-loader").start(() -> loadCursor(iconFile, iconX, iconY));
 
     setBounds(x - 5, y - 5, w + 10, h + 10);
 
-    blockOutStroke = new BasicStroke(h, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_BEVEL);
-    blockOutShape = new Path2D.Float();
-    blockOutShape.moveTo(0, h / 2);
-    blockOutShape.lineTo(w, h / 2);
-
     // make the window transparent
     setBackground(clearPaint);  // TODO allow this to be black for pointer mode
 
@@ -89,8 +89,46 @@ public final class AnnotationTool extends JFrame {
     }
     setVisible(true);
 
-    backingMain = createImage(w, h);
-    backingScratch = createImage(w, h);
+    if (VolatileBacking.wanted(getGraphicsConfiguration().getDevice(), clearPaint.getAlpha() < 255)) {
+      accelerated = VolatileBacking.create(getGraphicsConfiguration(), w, h);
+    }
+    if (accelerated != null) {
+      // new volatile images start out undefined, the engine clears them
+      canvas = new CanvasEngine(new ImageSurface(accelerated.main()),
+          new ImageSurface(accelerated.scratch()), clearPaint);
+      try {
+        createBufferStrategy(2);
+        strategy = getBufferStrategy();
+      } catch (IllegalStateException | IllegalArgumentException ex) {
+        System.err.println("No buffer strategy, presenting through paint(): " + ex);
+      }
+    } else {
+      canvas = new CanvasEngine(new TiledSurface(w, h), new TiledSurface(w, h), clearPaint);
+    }
+    canvas.setProblemListener(message -> SwingUtilities.invokeLater(() ->
+        JOptionPane.showMessageDialog(this, message, "Annotate", JOptionPane.WARNING_MESSAGE)));
+    int hz = FramePacer.configuredHz(getGraphicsConfiguration().getDevice());
+    Metrics.log("Rendering: " + (accelerated != null ? "accelerated" : "software")
+        + (strategy != null ? ", page flipped" : "") + ", " + hz + " frames a second");
+
+    Path journalPath = CanvasEngine.configuredJournal(!POINTER_MODE);
+    if (journalPath != null) {
+      canvas.openJournal(journalPath);
+    }
+    session = new Session(canvas);
+    pacer = new FramePacer(hz, this::frame);
+    String tracePath = System.getProperty("annotate.trace");
+    if (tracePath != null) {
+      try {
+        session.traceTo(Paths.get(tracePath));
+        Metrics.log("Tracing input to " + tracePath);
+      } catch (IOException ioe) {
+        System.err.println("Couldn't trace input to " + tracePath + ": " + ioe.getMessage());
+      }
+    }
+    // the tools window that normally picks the pen comes after the first paint
+    setPaint(ControllerBox.DEFAULT_COLOR);
+    setStroke(ControllerBox.DEFAULT_STROKE.stroke());
 
     // create a drawing panel border, if desired!
 //    Path2D.Float borderShape = new Path2D.Float();
@@ -107,29 +145,105 @@ public final class AnnotationTool extends JFrame {
     addKeyListener(new KeyAdapter() {
       @Override
       public void keyTyped(KeyEvent e) {
-        System.out.println("key: extended code is " + (int)e.getExtendedKeyCode());
+        Metrics.log("key: extended code is " + (int)e.getExtendedKeyCode());
         if (e.getKeyChar() == 26) { // Control-Z for undo
           undo();
         } else if (e.getKeyChar() == 25) { // Control-Y for redo
           redo();
         } else if (e.getKeyChar() == 'C' || e.getKeyChar() == 'c') { // Toggle controller box
-          controllerBox.setVisible(!controllerBox.isVisible());
+          if (controllerBox != null) {
+            controllerBox.setVisible(!controllerBox.isVisible());
+          }
+        } else if (e.getKeyChar() == 'L' || e.getKeyChar() == 'l') { // Toggle laser pointer
+          laser = !laser;
+        } else if (e.getKeyChar() == 'M' || e.getKeyChar() == 'm') { // Toggle metrics overlay
+          overlay.toggle();
+          Rectangle r = overlay.area();
+          repaint(r.x, r.y, r.width, r.height);
+        }
+      }
+
+      @Override
+      public void keyPressed(KeyEvent e) {
+        // the keys slide deck remotes send
+        switch (e.getKeyCode()) {
+          case KeyEvent.VK_PAGE_DOWN, KeyEvent.VK_RIGHT -> nextPage();
+          case KeyEvent.VK_PAGE_UP, KeyEvent.VK_LEFT -> previousPage();
+          case KeyEvent.VK_HOME -> goToPage(0);
+          case KeyEvent.VK_END -> goToPage(canvas.pageCount() - 1);
+          default -> {
+          }
         }
       }
     });
   }
 
+  private void loadCursor(String iconFile, int iconX, int iconY) {
+    try (InputStream imageStream = getClass().getResourceAsStream(iconFile)) {
+      Metrics.log("Stream is " + imageStream);
+      Image image = ImageIO.read(imageStream);
+      Cursor pencilCursor = Toolkit.getDefaultToolkit()
+          .createCustomCursor(image, new Point(iconX, iconY), iconFile);
+      SwingUtilities.invokeLater(() -> setCursor(pencilCursor));
+    } catch (IOException ioe) {
+      ioe.printStackTrace(System.err);
+    }
+  }
+
+  /** Goes to the next page, starting a new one after the last. */
+  public void nextPage() {
+    goToPage(canvas.page() + 1);
+  }
+
+  public void previousPage() {
+    if (canvas.page() > 0) {
+      goToPage(canvas.page() - 1);
+    }
+  }
+
+  private void goToPage(int index) {
+    applyInput();
+    restoreIfLost();
+    Rectangle dirty = session.goToPage(index);
+    if (dirty != null) {
+      repaint(dirty.x, dirty.y, dirty.width, dirty.height);
+    }
+    if (controllerBox != null) {
+      controllerBox.showPage(canvas.page(), canvas.pageCount());
+    }
+  }
+
+  public int page() {
+    return canvas.page();
+  }
+
+  public int pageCount() {
+    return canvas.pageCount();
+  }
+
+  // what the mouse did up to now is applied with the pen it was done with,
+  // and before anything else happens to the drawing
   public void setPaint(Paint paint) {
-    this.paint = paint;
+    applyInput();
+    session.setPaint(paint);
+    trail.setPen(paint, null);
+  }
+
+  public void setErasing() {
+    applyInput();
+    session.setErasing();
   }
 
   public void setStroke(Stroke stroke) {
-    this.stroke = stroke;
+    applyInput();
+    session.setStroke(stroke);
+    trail.setPen(null, stroke);
   }
 
   public void doClear(Paint paint) {
-    ShapeDef blockOutShapeDef = new ShapeDef(blockOutStroke, paint, blockOutShape, null);
-    commitShape(blockOutShapeDef);
+    applyInput();
+    restoreIfLost();
+    session.clear(paint);
     repaint();
   }
 
@@ -138,15 +252,16 @@ public final class AnnotationTool extends JFrame {
   }
 
   public void clearHistory() {
-    doClear();
-    undoStack.clear();
-    redoStack.clear();
+    applyInput();
+    restoreIfLost();
+    session.clearHistory();
+    repaint();
   }
 
   final ClipboardOwner clipboardOwner = (clipboard, contents) -> {
   };
 
-  // expect to overwrite the null during startup
+  // asked for on the first save unless set
   private static Path baseDir = null;
 
   static {
@@ -154,106 +269,179 @@ public final class AnnotationTool extends JFrame {
     if (imageDir != null) baseDir = Paths.get(imageDir);
   }
 
+  // the directory saved images, exports and recordings go into, asked for
+  // the first time it is needed; null if none was picked
+  private Path baseDir() {
+    if (baseDir == null) {
+      JFileChooser jfc = new JFileChooser();
+      jfc.setDialogTitle("Directory for saved images");
+      jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      if (jfc.showOpenDialog(controllerBox) != JFileChooser.APPROVE_OPTION) {
+        return null;
+      }
+      baseDir = jfc.getSelectedFile().toPath();
+      Metrics.log("Selected base directory for images is: " + baseDir);
+    }
+    return baseDir;
+  }
+
+  // false if there is nowhere to save to
+  private boolean startSaver() {
+    if (imageSaver == null) {
+      Path dir = baseDir();
+      if (dir == null) {
+        return false;
+      }
+      imageSaver = new ImageSaver(dir);
+    }
+    return true;
+  }
+
   public void doLoad() {
     JFileChooser chooser = new JFileChooser();
     FileNameExtensionFilter filter = new FileNameExtensionFilter(
         "Image files", "bmp", "jpg", "jpeg", "png", "gif", "tif", "tiff");
     chooser.setFileFilter(filter);
-    if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+    if (loading == null && chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
       File file = chooser.getSelectedFile();
-      try {
-        BufferedImage loadedImage = ImageIO.read(file);
-        Image newImage = loadedImage;
-        int loadedWidth = loadedImage.getWidth();
-        int loadedHeight = loadedImage.getHeight();
-        int thisWidth = this.getWidth();
-        int thisHeight = this.getHeight();
-        if (loadedWidth > thisWidth
-            || loadedHeight > thisHeight) { // needs shrinking
-          // keep aspect ratio
-          double widthRatio = (double) thisWidth / loadedWidth;
-          double heightRatio = (double) thisHeight / loadedHeight;
-          double requiredRatio = Math.min(widthRatio, heightRatio);
-          int targetWidth = (int) (loadedWidth * requiredRatio);
-          int targetHeight = (int) (loadedHeight * requiredRatio);
-          newImage = loadedImage.getScaledInstance(
-              targetWidth, targetHeight, Image.SCALE_SMOOTH);
+      ProgressMonitor monitor = new ProgressMonitor(
+          controllerBox, "Loading " + file.getName(), null, 0, 100);
+      monitor.setMillisToPopup(200);
+      // decoding and shrinking a big photo takes a while, so it is done off
+      // the EDT, and only putting it on the canvas happens back on it
+      loading = new SwingWorker<>() {
+        @Override
+        protected BufferedImage doInBackground() throws IOException {
+          return canvas.readImage(file.toPath(), this::setProgress);
         }
-        clearHistory();
-        // add loadedImage as a "shape" to be drawn in the stack.
-        commitShape(new ShapeDef(null, null, null, newImage));
-        repaint();
-      } catch (IOException e) {
-        System.err.println("Failed to load image");
-        e.printStackTrace(System.err);
-      }
+
+        @Override
+        protected void done() {
+          loading = null;
+          monitor.close();
+          if (isCancelled()) {
+            return;
+          }
+          try {
+            BufferedImage loadedImage = get();
+            applyInput();
+            restoreIfLost();
+            session.loadImage(loadedImage, file.toPath());
+            repaint();
+          } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Failed to load image");
+            e.printStackTrace(System.err);
+          }
+        }
+      };
+      loading.addPropertyChangeListener(e -> {
+        if (monitor.isCanceled()) {
+          ((SwingWorker<?, ?>) e.getSource()).cancel(false);
+        } else if ("progress".equals(e.getPropertyName())) {
+          monitor.setProgress((Integer) e.getNewValue());
+        }
+      });
+      loading.execute();
     }
   }
 
   public void doSave() {
+    applyInput();
+    if (imageSaver == null) {
+      // the screen is captured once the directory chooser is off it
+      if (startSaver()) {
+        SwingUtilities.invokeLater(this::doSave);
+      }
+      return;
+    }
     // find filename for use
-    Path outPath;
-    String fname;
-    do {
-      fname = String.format("image-%06d.png", saveImageIndex++);
-      outPath = baseDir.resolve(fname);
-    } while (Files.exists(outPath));
+    String fname = imageSaver.reserveName();
 
     String imageTag = "<img src='" + fname + "'>";
     Clipboard clip = this.getToolkit().getSystemClipboard();
     clip.setContents(new StringSelection(imageTag), clipboardOwner);
     System.out.println(imageTag);
 
-    // no image found yet...
-    BufferedImage outImg = null;
-
     // get bounding rectangle for image
     Rectangle bounds = this.getBounds();
-    try {
-      Robot robot = new Robot();
-      outImg = robot.createScreenCapture(bounds);
-    } catch (AWTException e) {
-      System.err.println("Failed to create Robot for screen capture");
-    }
+    BufferedImage outImg = imageSaver.capture(bounds);
 
     // fallback capture (does not get the background under
-    // transparent pixels of drawing area)
-    if (outImg == null && backingMain instanceof BufferedImage) {
-      outImg = (BufferedImage) backingMain;
-    }
-//      else if (backingMain instanceof ToolkitImage) {
-//        System.err.println("Using toolkit image...");
-//        outImg = ((ToolkitImage) backingMain).getBufferedImage();
-//      } 
+    // transparent pixels of drawing area); copied because drawing
+    // carries on while the image is being written
     if (outImg == null) {
-      System.err.println("Failed to find workable image capture method");
-      return; // give up
+      outImg = canvas.render();
     }
 
+    imageSaver.submit(outImg, fname);
+  }
+
+  /**
+   * Writes the drawing out from its history, without going through pixels:
+   * the page on screen as SVG and every page as PDF, next to the saved
+   * images.
+   */
+  public void doExport() {
+    applyInput();
+    if (!startSaver()) {
+      return;
+    }
+    imageSaver.submit(canvas.vectorExport(),
+        String.format("drawing-%tY%<tm%<td-%<tH%<tM%<tS", System.currentTimeMillis()));
+  }
+
+  /**
+   * Starts recording the drawing window to a video in the image directory,
+   * or stops the recording in progress. Returns whether it is now recording.
+   */
+  public boolean toggleRecording() {
+    if (recorder != null) {
+      recorder.stop();
+      recorder = null;
+      return false;
+    }
+    Path dir = baseDir();
+    if (dir == null) {
+      return false;
+    }
+    Rectangle bounds = getBounds();
+    ScreenRecorder.Source source = ScreenRecorder.screen(bounds);
+    if (source == null) {
+      // as with saving, without screen capture only the drawing is recorded
+      bounds = new Rectangle(0, 0, canvas.width(), canvas.height());
+      source = this::grabCanvas;
+    }
+    Path file = dir.resolve(String.format("recording-%tY%<tm%<td-%<tH%<tM%<tS.avi",
+        System.currentTimeMillis()));
     try {
-      ImageIO.write(outImg, "png", outPath.toFile());
-    } catch (IOException ex) {
-      System.err.println("Save failed: " + ex.getMessage());
+      recorder = new ScreenRecorder(file, bounds.width, bounds.height, source);
+      Metrics.log("Recording to " + file);
+    } catch (IOException ioe) {
+      System.err.println("Couldn't start recording " + file + ": " + ioe.getMessage());
     }
+    return recorder != null;
+  }
+
+  // called from the recording thread; the drawing is only touched on the EDT
+  private void grabCanvas(BufferedImage into) throws Exception {
+    SwingUtilities.invokeAndWait(() -> {
+      restoreIfLost();
+      Graphics2D g = into.createGraphics();
+      canvas.frame().paintTo(g, new Rectangle(0, 0, into.getWidth(), into.getHeight()));
+      g.dispose();
+    });
   }
 
   @Override
   public void paint(Graphics graphics) {
-    // Blank out the scratch image
-    Graphics2D gScratch = (Graphics2D) backingScratch.getGraphics();
-    gScratch.setComposite(AlphaComposite.Src);
-    gScratch.setBackground(clearPaint);
-    gScratch.clearRect(0, 0, this.getBounds().width, this.getBounds().height);
-    gScratch.drawImage(backingMain, 0, 0, null);
-
-    gScratch.setRenderingHint(
-        RenderingHints.KEY_ANTIALIASING,
-        RenderingHints.VALUE_ANTIALIAS_ON);
-    // if there is a "shape in progress" draw it on the scratch image
-    if (p2d != null) {
-      gScratch.setPaint(paint);
-      gScratch.setStroke(stroke);
-      gScratch.draw(p2d);
+    long start = Metrics.start();
+    restoreIfLost();
+    Surface frame = canvas.frame();
+
+    if (strategy != null) {
+      present(frame);
+      painted(start);
+      return;
     }
 
     Graphics2D g = (Graphics2D) graphics;
@@ -263,95 +451,159 @@ public final class AnnotationTool extends JFrame {
         RenderingHints.KEY_ANTIALIASING,
         RenderingHints.VALUE_ANTIALIAS_ON);
 //    g.translate(5, 5);
-    g.drawImage(backingScratch, 0, 0, null);
+    Rectangle clip = g.getClipBounds();
+    // copy just the damaged area
+    frame.paintTo(g, clip != null ? clip : new Rectangle(0, 0, frame.width(), frame.height()));
+    trail.paint(g, System.nanoTime());
+    overlay.paint(g);
     g.setTransform(trans);
 //    g.setPaint(border.paint);
 //    g.setStroke(border.stroke);
 //    g.draw(border.shape);
+    painted(start);
+  }
+
+  // page-flip the whole frame; the back buffer isn't guaranteed to keep
+  // its contents between flips so there is no partial update here
+  private void present(Surface frame) {
+    do {
+      do {
+        Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+        frame.paintTo(g, new Rectangle(0, 0, frame.width(), frame.height()));
+        trail.paint(g, System.nanoTime());
+        overlay.paint(g);
+        g.dispose();
+      } while (strategy.contentsRestored());
+      strategy.show();
+    } while (strategy.contentsLost());
   }
 
-  private Path2D.Float p2d; // shape in progress...
+  // with accelerated backing the images can be lost at any time; composite
+  // the drawing's layers (and the live stroke) onto new ones when that happens
+  private void restoreIfLost() {
+    if (accelerated != null && accelerated.validate(getGraphicsConfiguration())) {
+      canvas.replaceSurfaces(new ImageSurface(accelerated.main()),
+          new ImageSurface(accelerated.scratch()));
+      repaint();
+    }
+  }
 
   public void undo() {
-    if (!undoStack.isEmpty()) {
-      ShapeDef sd = undoStack.pop();
-      redoStack.push(sd);
-      paintFromUndoStack();
+    applyInput();
+    restoreIfLost();
+    Rectangle dirty = session.undo();
+    if (dirty != null) {
+      repaint(dirty.x, dirty.y, dirty.width, dirty.height);
     }
   }
 
   public void redo() {
-    if (!redoStack.isEmpty()) {
-      ShapeDef sd = redoStack.pop();
-      undoStack.push(sd);
-      paintFromUndoStack();
+    applyInput();
+    restoreIfLost();
+    Rectangle dirty = session.redo();
+    if (dirty != null) {
+      repaint(dirty.x, dirty.y, dirty.width, dirty.height);
     }
   }
 
-  private void paintFromUndoStack() {
-    Graphics2D g = (Graphics2D) backingMain.getGraphics();
-    g.setRenderingHint(
-        RenderingHints.KEY_ANTIALIASING,
-        RenderingHints.VALUE_ANTIALIAS_ON);
+  // mouse samples only go into the buffer here; the drawing catches up
+  // with them once a frame, however often the mouse reports
+  @Override
+  protected void processEvent(AWTEvent evt) {
+    super.processEvent(evt);
+    if (evt instanceof MouseEvent me && (me.getID() == MouseEvent.MOUSE_PRESSED
+        || me.getID() == MouseEvent.MOUSE_DRAGGED || me.getID() == MouseEvent.MOUSE_RELEASED)) {
+      input.add(me.getID(), me.getX(), me.getY(), me.getWhen());
+      pacer.request();
+    }
+  }
 
-    g.setBackground(clearPaint);
-    g.setComposite(AlphaComposite.Src);
-    g.clearRect(0, 0, this.getBounds().width, this.getBounds().height);
-    Iterator<ShapeDef> sdi = undoStack.descendingIterator();
-    while (sdi.hasNext()) {
-      ShapeDef s = sdi.next();
-      if (s.stroke != null) {
-        g.setPaint(s.paint);
-        g.setStroke(s.stroke);
-        g.draw(s.shape);
-      } else {
-        assert s.img != null;
-        g.drawImage(s.img, 0, 0, null);
-      }
+  // once a refresh while asked for: the mouse samples, then the pointer
+  // trail, which asks for the next frame itself until it has faded away
+  private void frame() {
+    applyInput();
+    Rectangle faded = trail.fade(System.nanoTime());
+    if (faded != null) {
+      repaint(faded.x, faded.y, faded.width, faded.height);
+    }
+    if (!trail.isEmpty()) {
+      pacer.request();
     }
-    repaint();
   }
 
-  private void commitShape(ShapeDef s) {
-    undoStack.push(s);
-    Graphics2D g = (Graphics2D) backingMain.getGraphics();
-    g.setRenderingHint(
-        RenderingHints.KEY_ANTIALIASING,
-        RenderingHints.VALUE_ANTIALIAS_ON);
+  // applies the waiting mouse samples and repaints what they changed, in one
+  // go, noting when the oldest was posted so the time until it is on screen
+  // can be measured
+  private void applyInput() {
+    if (input.isEmpty()) {
+      return;
+    }
+    restoreIfLost();
+    long when = input.oldestWhen();
+    inputDirty = null;
+    inputNanos = System.nanoTime();
+    input.drain(applySample);
+    Rectangle dirty = inputDirty;
+    if (dirty != null) {
+      if (Metrics.ENABLED && inputWhen == 0) {
+        inputWhen = when;
+      }
+      repaint(dirty.x, dirty.y, dirty.width, dirty.height);
+    }
+  }
 
-    if (s.shape != null) {
-      g.setComposite(AlphaComposite.Src);
-      g.setPaint(s.paint);
-      g.setStroke(s.stroke);
-      g.draw(s.shape);
-      p2d = null;
+  private void applySample(int id, int x, int y) {
+    if (id == MouseEvent.MOUSE_PRESSED) {
+      pointing = laser;
+    }
+    Rectangle dirty;
+    if (pointing) {
+      dirty = trail.add(x, y, id == MouseEvent.MOUSE_PRESSED, inputNanos);
     } else {
-      assert s.img != null;
-      g.drawImage(s.img, 0, 0, null);
+      dirty = switch (id) {
+        case MouseEvent.MOUSE_PRESSED -> session.press(x, y);
+        case MouseEvent.MOUSE_DRAGGED -> session.drag(x, y);
+        default -> session.release(x, y);
+      };
+    }
+    if (dirty != null) {
+      inputDirty = inputDirty == null ? dirty : inputDirty.union(dirty);
     }
   }
 
-  @Override
-  protected void processEvent(AWTEvent evt) {
-    super.processEvent(evt);
-    if (evt instanceof MouseEvent me) {
-      if (me.getID() == MouseEvent.MOUSE_PRESSED) {
-        p2d = new Path2D.Float();
-        p2d.moveTo(me.getX(), me.getY());
-      } else if (p2d != null && me.getID() == MouseEvent.MOUSE_DRAGGED) {
-        p2d.lineTo(me.getX(), me.getY());
-      } else if (p2d != null && me.getID() == MouseEvent.MOUSE_RELEASED) {
-        ShapeDef sd = new ShapeDef(stroke, paint, p2d, null);
-        commitShape(sd);
-      }
-      repaint();
+  // called once a frame is on screen
+  private void painted(long start) {
+    if (afterFirstPaint != null) {
+      reportStartup();
+      SwingUtilities.invokeLater(afterFirstPaint);
+      afterFirstPaint = null;
+    }
+    Metrics.Timer.PAINT.stop(start);
+    Metrics.repainted();
+    if (inputWhen != 0) {
+      // event times only have millisecond resolution
+      Metrics.Timer.INPUT.record((System.currentTimeMillis() - inputWhen) * 1_000_000);
+      inputWhen = 0;
     }
   }
 
+  // how long it took to get the canvas on the screen, from the JVM being
+  // started when that is known, and from main(); printed once, whatever
+  // the metrics switch says
+  private static void reportStartup() {
+    String launch = ProcessHandle.current().info().startInstant()
+        .map(t -> Duration.between(t, Instant.now()).toMillis() + " ms after launch, ")
+        .orElse("");
+    System.out.println("First paint " + launch
+        + (System.nanoTime() - mainStarted) / 1_000_000 + " ms after main");
+  }
+
   public static boolean POINTER_MODE = false;
   public static ControllerBox controllerBox;
+  private static long mainStarted;
 
   public static void main(final String[] args) {
+    mainStarted = System.nanoTime();
     System.err.println("Annotation tool by simon@dancingcloudservices.com");
     System.err.println("Icons by www.iconfinder.com");
     int x1 = 0, y1 = 0; // default top-left
@@ -399,22 +651,19 @@ public final class AnnotationTool extends JFrame {
           }
           System.err.println("Per-pixel transluscent OK...");
 
-          if (baseDir == null && !POINTER_MODE) {
-            // launch a file selector box to determine base save directory.
-            JFileChooser jfc = new JFileChooser();
-            jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
-            while (jfc.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
-              ;
-            baseDir = jfc.getSelectedFile().toPath();
-          }
-          System.out.println("Selected base directory for images is: " + baseDir);
-
-          controllerBox = new ControllerBox(
-              new AnnotationTool(x, y, w, h, iconFile, iconX, iconY)
-          );
-          controllerBox.setBounds(x + w + 10, y, 0, 0);
-          controllerBox.pack();
-          controllerBox.setVisible(!POINTER_MODE);
+          // the canvas is shown first; the tools window is built once it is
+          // on the screen, and the image directory asked for on the first save
+          AnnotationTool tool = new AnnotationTool(x, y, w, h, iconFile, iconX, iconY);
+          tool.afterFirstPaint = () -> {
+            controllerBox = new ControllerBox(tool);
+            controllerBox.setBounds(x + w + 10, y, 0, 0);
+            controllerBox.pack();
+            controllerBox.setVisible(!POINTER_MODE);
+            if (Boolean.getBoolean("annotate.startup.exit")) {
+              // a training run for the class data sharing archive
+              SwingUtilities.invokeLater(() -> System.exit(0));
+            }
+          };
         }
     );
   }
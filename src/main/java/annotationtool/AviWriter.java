@@ -0,0 +1,135 @@
+package annotationtool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes an AVI file of JPEG frames (Motion JPEG), which most players and
+ * editors read. The headers are written with room for the frame count and
+ * sizes, and filled in by {@link #close} along with the index. An empty
+ * frame shows the previous one again, which is how frames that were never
+ * captured are recorded without the video losing time.
+ */
+final class AviWriter implements Closeable {
+
+  /** Keep files well inside the 32-bit sizes an AVI is made of. */
+  static final long MAX_BYTES = 1L << 30;
+
+  private static final int HEADER_BYTES = 224;
+  private static final int MOVI = 220; // where the movi list's contents are counted from
+  private static final int AVIF_HASINDEX = 0x10;
+  private static final int AVIIF_KEYFRAME = 0x10;
+  private static final byte[] NO_DATA = new byte[0];
+
+  private final FileChannel out;
+  private final int fps;
+  private final ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+  private long position = HEADER_BYTES;
+  private int[] index = new int[2 * 1024]; // offset and size of each frame
+  private int frames;
+  private int largestFrame;
+
+  AviWriter(Path file, int width, int height, int fps) throws IOException {
+    this.fps = fps;
+    out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    fourcc(h, "RIFF").putInt(0);
+    fourcc(h, "AVI ");
+    fourcc(h, "LIST").putInt(192);
+    fourcc(h, "hdrl");
+    fourcc(h, "avih").putInt(56);
+    h.putInt(1_000_000 / fps).putInt(0).putInt(0).putInt(AVIF_HASINDEX)
+        .putInt(0).putInt(0).putInt(1).putInt(0).putInt(width).putInt(height)
+        .putInt(0).putInt(0).putInt(0).putInt(0);
+    fourcc(h, "LIST").putInt(116);
+    fourcc(h, "strl");
+    fourcc(h, "strh").putInt(56);
+    fourcc(h, "vids");
+    fourcc(h, "MJPG");
+    h.putInt(0).putInt(0).putInt(0).putInt(1).putInt(fps).putInt(0).putInt(0)
+        .putInt(0).putInt(-1).putInt(0)
+        .putShort((short) 0).putShort((short) 0)
+        .putShort((short) width).putShort((short) height);
+    fourcc(h, "strf").putInt(40);
+    h.putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24);
+    fourcc(h, "MJPG");
+    h.putInt(width * height * 3).putInt(0).putInt(0).putInt(0).putInt(0);
+    fourcc(h, "LIST").putInt(0);
+    fourcc(h, "movi");
+    writeFully(h.flip(), 0);
+  }
+
+  private static ByteBuffer fourcc(ByteBuffer buf, String code) {
+    return buf.put(code.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private void writeFully(ByteBuffer buf, long at) throws IOException {
+    while (buf.hasRemaining()) {
+      at += out.write(buf, at);
+    }
+  }
+
+  /** The size the file will have if nothing more is added. */
+  long size() {
+    return position + 8 + 16L * frames;
+  }
+
+  /** Adds a frame of {@code length} bytes of JPEG data. */
+  void frame(byte[] jpeg, int length) throws IOException {
+    if (frames == index.length / 2) {
+      index = Arrays.copyOf(index, 2 * index.length);
+    }
+    index[2 * frames] = (int) (position - MOVI);
+    index[2 * frames + 1] = length;
+    frames++;
+    largestFrame = Math.max(largestFrame, length);
+    chunkHeader.clear();
+    fourcc(chunkHeader, "00dc").putInt(length);
+    writeFully(chunkHeader.flip(), position);
+    writeFully(ByteBuffer.wrap(jpeg, 0, length), position + 8);
+    // chunks start on even offsets
+    position += 8 + length + (length & 1);
+  }
+
+  /** Adds a frame that shows the previous one again. */
+  void repeat() throws IOException {
+    frame(NO_DATA, 0);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      ByteBuffer idx = ByteBuffer.allocate(8 + 16 * frames).order(ByteOrder.LITTLE_ENDIAN);
+      fourcc(idx, "idx1").putInt(16 * frames);
+      for (int i = 0; i < frames; i++) {
+        fourcc(idx, "00dc").putInt(AVIIF_KEYFRAME).putInt(index[2 * i]).putInt(index[2 * i + 1]);
+      }
+      long end = position + idx.capacity();
+      writeFully(idx.flip(), position);
+
+      ByteBuffer v = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      patch(v, 4, (int) (end - 8));
+      patch(v, 36, largestFrame * fps); // most bytes a second
+      patch(v, 48, frames);
+      patch(v, 60, largestFrame + 8); // buffer a player needs
+      patch(v, 140, frames);
+      patch(v, 144, largestFrame + 8);
+      patch(v, 216, (int) (position - MOVI));
+    } finally {
+      out.close();
+    }
+  }
+
+  private void patch(ByteBuffer v, long at, int value) throws IOException {
+    v.clear();
+    writeFully(v.putInt(value).flip(), at);
+  }
+}
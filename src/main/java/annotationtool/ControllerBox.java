@@ -1,5 +1,7 @@
 package annotationtool;
 
+import annotationtool.canvas.Tools;
+import annotationtool.canvas.Tools.NamedStroke;
 import util.GridBagConstraintBuilder;
 
 import javax.swing.*;
@@ -13,6 +15,7 @@ class ControllerBox extends JFrame {
 
   private AnnotationTool annotationTool;
   private static final int SWATCH_SIZE = 24;
+  private final JLabel pageLabel = new JLabel();
 
   private static class SwatchIcon implements Icon {
 
@@ -46,44 +49,10 @@ class ControllerBox extends JFrame {
     }
   }
 
-  private static final Color[] penColors = {
-      new Color(255, 0, 0, 255),
-      new Color(255, 128, 0, 255),
-      new Color(255, 255, 0, 255),
-      new Color(0, 255, 0, 255),
-      new Color(0, 0, 255, 255),
-      new Color(255, 0, 255, 255),
-      new Color(0, 0, 0, 255),
-      new Color(255, 255, 255, 255),};
-
-  private static final Color[] highlighterColors = {
-      new Color(255, 0, 0, 128),
-      new Color(255, 128, 0, 128),
-      new Color(255, 255, 0, 128),
-      new Color(0, 255, 0, 128),
-      new Color(0, 0, 255, 128),
-      new Color(0, 0, 0, 0)
-  };
-  private static final Color DEFAULT_COLOR = AnnotationTool.POINTER_MODE ?
-      penColors[7] : highlighterColors[2]; // Solid white, or yellow highlighter
-
-  private static class NamedStroke {
-    public String name;
-    public BasicStroke stroke;
-
-    public NamedStroke(String name, BasicStroke stroke) {
-      this.name = name;
-      this.stroke = stroke;
-    }
-  }
-
-  private static final NamedStroke[] strokes = {
-      new NamedStroke("Thin", new BasicStroke(3, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
-      new NamedStroke("Medium", new BasicStroke(12, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
-      new NamedStroke("Thick", new BasicStroke(30, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
-      new NamedStroke("Huge", new BasicStroke(70, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
-  };
-  private static final NamedStroke DEFAULT_STROKE = strokes[AnnotationTool.POINTER_MODE ? 0 : 2];
+  static final Color DEFAULT_COLOR = AnnotationTool.POINTER_MODE ?
+      Tools.penColors().get(7) : Tools.highlighterColors().get(2); // Solid white, or yellow highlighter
+  static final NamedStroke DEFAULT_STROKE =
+      Tools.strokes().get(AnnotationTool.POINTER_MODE ? 0 : 2);
 
   private static class PaintPalletteActionListener implements ActionListener {
 
@@ -124,7 +93,7 @@ class ControllerBox extends JFrame {
     leftPanel.add(new JLabel("Pens"), leftGbcb.fullWidth().build());
     leftGbcb.nextY().singleWidth();
     JRadioButton defaultColorButton = null;
-    for (Color ppi : penColors) {
+    for (Color ppi : Tools.penColors()) {
       boolean defaultSelection = DEFAULT_COLOR == ppi;
       JRadioButton jrb = new JRadioButton(null, new SwatchIcon(ppi), defaultSelection);
       if (defaultSelection) defaultColorButton = jrb;
@@ -136,7 +105,7 @@ class ControllerBox extends JFrame {
     leftPanel.add(new JLabel("Highlighters"), leftGbcb.fullWidth().nextX().build());
     leftGbcb.nextY().singleWidth();
 
-    for (Color ppi : highlighterColors) {
+    for (Color ppi : Tools.highlighterColors()) {
       boolean defaultSelection = DEFAULT_COLOR == ppi;
       JRadioButton jrb = new JRadioButton(null, new SwatchIcon(ppi), defaultSelection);
       if (defaultSelection) defaultColorButton = jrb;
@@ -148,11 +117,16 @@ class ControllerBox extends JFrame {
     // select the default color
     defaultColorButton.doClick();
 
+    JRadioButton eraserButton = new JRadioButton("Stroke eraser");
+    eraserButton.addActionListener(e -> annotationTool.setErasing());
+    leftPanel.add(eraserButton, leftGbcb.fullWidth().nextY().build());
+    toolGroup.add(eraserButton);
+
     leftPanel.add(new JLabel("Pen Sizes"), leftGbcb.fullWidth().nextY().build());
     ButtonGroup thicknessGroup = new ButtonGroup();
-    for (NamedStroke ns : strokes) {
-      JRadioButton jrb = new JRadioButton(ns.name);
-      jrb.addActionListener(e -> annotationTool.setStroke(ns.stroke));
+    for (NamedStroke ns : Tools.strokes()) {
+      JRadioButton jrb = new JRadioButton(ns.name());
+      jrb.addActionListener(e -> annotationTool.setStroke(ns.stroke()));
       leftPanel.add(jrb, leftGbcb.nextY().build());
       leftGbcb.nextY();
       thicknessGroup.add(jrb);
@@ -192,6 +166,23 @@ class ControllerBox extends JFrame {
     rightPanel.add(new JLabel("----------"), rightGbcb.build());
     rightGbcb.nextY();
 
+    JButton previousPage = new JButton("Previous page");
+    previousPage.addActionListener(e -> annotationTool.previousPage());
+    rightPanel.add(previousPage, rightGbcb.build());
+    rightGbcb.nextY();
+
+    JButton nextPage = new JButton("Next page");
+    nextPage.addActionListener(e -> annotationTool.nextPage());
+    rightPanel.add(nextPage, rightGbcb.build());
+    rightGbcb.nextY();
+
+    showPage(at.page(), at.pageCount());
+    rightPanel.add(pageLabel, rightGbcb.build());
+    rightGbcb.nextY();
+
+    rightPanel.add(new JLabel("----------"), rightGbcb.build());
+    rightGbcb.nextY();
+
     JButton bringToTop = new JButton("Bring to top");
     bringToTop.addActionListener(e -> {
         annotationTool.toFront();
@@ -218,6 +209,17 @@ class ControllerBox extends JFrame {
       save.addActionListener(e -> annotationTool.doSave());
       rightPanel.add(save, rightGbcb.build());
       rightGbcb.nextY();
+
+      JButton export = new JButton("Export SVG/PDF");
+      export.addActionListener(e -> annotationTool.doExport());
+      rightPanel.add(export, rightGbcb.build());
+      rightGbcb.nextY();
+
+      JButton record = new JButton("Start recording");
+      record.addActionListener(e -> record.setText(
+          annotationTool.toggleRecording() ? "Stop recording" : "Start recording"));
+      rightPanel.add(record, rightGbcb.build());
+      rightGbcb.nextY();
     }
 
     JButton quit = new JButton("Exit");
@@ -246,4 +248,8 @@ class ControllerBox extends JFrame {
     });
     rightGbcb.nextY();
   }
+
+  void showPage(int page, int count) {
+    pageLabel.setText("Page " + (page + 1) + " of " + count);
+  }
 }
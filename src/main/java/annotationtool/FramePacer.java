@@ -0,0 +1,81 @@
+package annotationtool;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsDevice;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs a frame on the EDT at most once a display refresh, and only when
+ * something asked for one since the last. Asking is a single atomic flag
+ * that any number of input events can set between two frames; the pacing
+ * thread sleeps until then, so an idle window costs nothing. A frame is
+ * never queued while the one before is still running, so when the EDT
+ * falls behind, frames come less often instead of piling up.
+ */
+final class FramePacer {
+
+  private final long periodNanos;
+  private final Runnable frame;
+  private final AtomicBoolean requested = new AtomicBoolean();
+  private final Thread thread;
+
+  FramePacer(int hz, Runnable frame) {
+    this.periodNanos = 1_000_000_000L / Math.max(1, hz);
+    this.frame = frame;
+    thread = Thread.ofPlatform().daemon().name("frame-pacer").start(this::run);
+  }
+
+  /**
+   * The frame rate set by the {@code annotate.frame.hz} property, or else
+   * the refresh rate of the display, or 60 if that isn't known.
+   */
+  static int configuredHz(GraphicsDevice device) {
+    Integer hz = Integer.getInteger("annotate.frame.hz");
+    if (hz != null && hz > 0) {
+      return hz;
+    }
+    DisplayMode mode = device.getDisplayMode();
+    if (mode != null && mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) {
+      return mode.getRefreshRate();
+    }
+    return 60;
+  }
+
+  /** Asks for a frame at the next refresh. Can be called from any thread. */
+  void request() {
+    if (!requested.getAndSet(true)) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void run() {
+    long last = System.nanoTime() - periodNanos;
+    try {
+      while (true) {
+        while (!requested.get()) {
+          LockSupport.park(this);
+        }
+        // the next refresh after the last frame, or now after a pause
+        long due = Math.max(System.nanoTime(), last + periodNanos);
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+          LockSupport.parkNanos(this, wait);
+        }
+        last = due;
+        // requests from now on are for the frame after this one, unless
+        // the frame gets to what they asked for first
+        requested.set(false);
+        try {
+          SwingUtilities.invokeAndWait(frame);
+        } catch (InvocationTargetException ite) {
+          System.err.println("Frame failed: " + ite.getCause());
+          ite.getCause().printStackTrace(System.err);
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package annotationtool;
+
+import annotationtool.canvas.VectorExport;
+import annotationtool.metrics.Metrics;
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Saves numbered PNG images into a directory. Capturing happens on the
+ * caller's thread (the EDT, so the picture matches what is on screen), while
+ * encoding and writing happen one at a time on a background thread so the
+ * next stroke never waits for a save. Vector exports of the drawing are
+ * written the same way.
+ */
+final class ImageSaver {
+
+  private static final Pattern IMAGE_NAME = Pattern.compile("image-(\\d+)\\.png");
+
+  private final Path dir;
+  private int nextIndex;
+  private Robot robot;
+  private boolean robotFailed;
+
+  private final ExecutorService worker = Executors.newSingleThreadExecutor(
+      Thread.ofVirtual().name("image-save").factory());
+  // only used from the worker thread
+  private final ImageWriter writer;
+  private final ImageWriteParam param;
+
+  ImageSaver(Path dir) {
+    this.dir = dir;
+    nextIndex = firstFreeIndex(dir);
+
+    writer = ImageIO.getImageWritersByFormatName("png").next();
+    param = writer.getDefaultWriteParam();
+    // 0 (fastest, biggest) to 9 (slowest, smallest)
+    int level = Integer.getInteger("annotate.png.compression", 3);
+    if (param.canWriteCompressed()) {
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(1.0F - Math.max(0, Math.min(9, level)) / 9.0F);
+    }
+
+    // let queued saves finish if the program is told to exit
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      worker.shutdown();
+      try {
+        worker.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+  }
+
+  // one past the highest numbered image already in the directory
+  private static int firstFreeIndex(Path dir) {
+    int next = 0;
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "image-*.png")) {
+      for (Path p : ds) {
+        Matcher m = IMAGE_NAME.matcher(p.getFileName().toString());
+        if (m.matches()) {
+          try {
+            next = Math.max(next, Integer.parseInt(m.group(1)) + 1);
+          } catch (NumberFormatException nfe) {
+            // too many digits to be one of ours
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      System.err.println("Couldn't scan " + dir + " for saved images: " + ioe.getMessage());
+    }
+    return next;
+  }
+
+  String reserveName() {
+    return String.format("image-%06d.png", nextIndex++);
+  }
+
+  /**
+   * Grabs the given screen area, or returns null if screen capture isn't
+   * possible here.
+   */
+  BufferedImage capture(Rectangle bounds) {
+    if (robot == null && !robotFailed) {
+      try {
+        robot = new Robot();
+      } catch (AWTException e) {
+        System.err.println("Failed to create Robot for screen capture");
+        robotFailed = true;
+      }
+    }
+    return robot != null ? robot.createScreenCapture(bounds) : null;
+  }
+
+  /**
+   * Queues the image to be written as {@code fname}. The image must not be
+   * modified afterwards.
+   */
+  void submit(BufferedImage image, String fname) {
+    worker.execute(() -> write(image, dir.resolve(fname)));
+  }
+
+  /**
+   * Queues the drawing to be written as {@code name}.svg, showing the page
+   * that was on screen, and {@code name}.pdf, with every page.
+   */
+  void submit(VectorExport drawing, String name) {
+    worker.execute(() -> {
+      long start = System.nanoTime();
+      Path svg = dir.resolve(name + ".svg");
+      Path pdf = dir.resolve(name + ".pdf");
+      boolean saved = writePart(svg, out -> drawing.writeSvg(out, drawing.currentPage()))
+          && writePart(pdf, drawing::writePdf);
+      if (saved) {
+        Metrics.log(String.format("Exported %s and %s in %d ms", svg.getFileName(),
+            pdf.getFileName(), (System.nanoTime() - start) / 1_000_000));
+      }
+    });
+  }
+
+  private interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  // writes to a side file first so nothing ever sees half a file
+  private boolean writePart(Path outPath, Content content) {
+    Path partPath = outPath.resolveSibling(outPath.getFileName() + ".part");
+    try {
+      try (OutputStream out = Files.newOutputStream(partPath)) {
+        content.writeTo(out);
+      }
+      Files.move(partPath, outPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      System.err.println("Save failed: " + ex.getMessage());
+      return false;
+    }
+  }
+
+  private void write(BufferedImage image, Path outPath) {
+    writePart(outPath, out -> {
+      try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+        writer.setOutput(ios);
+        writer.write(null, new IIOImage(image, null, null), param);
+      } finally {
+        writer.reset();
+      }
+    });
+  }
+}
@@ -0,0 +1,50 @@
+package annotationtool;
+
+import java.util.Arrays;
+
+/**
+ * Mouse samples waiting for the next frame, in the order they came. It only
+ * grows, so no sample is ever dropped however fast the mouse reports, and
+ * it is only touched on the EDT, so it needs no locking at all; the
+ * {@link FramePacer} is told separately that there is something in it.
+ */
+final class InputBuffer {
+
+  interface Sink {
+    void sample(int id, int x, int y);
+  }
+
+  private int[] samples = new int[3 * 256]; // id, x, y
+  private int count;
+  private long oldestWhen; // when the first sample waiting was posted
+
+  void add(int id, int x, int y, long when) {
+    if (3 * count + 3 > samples.length) {
+      samples = Arrays.copyOf(samples, 2 * samples.length);
+    }
+    if (count == 0) {
+      oldestWhen = when;
+    }
+    samples[3 * count] = id;
+    samples[3 * count + 1] = x;
+    samples[3 * count + 2] = y;
+    count++;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  /** When the oldest waiting sample was posted, in event time (milliseconds). */
+  long oldestWhen() {
+    return oldestWhen;
+  }
+
+  /** Hands every waiting sample to {@code sink}, oldest first, and forgets them. */
+  void drain(Sink sink) {
+    for (int i = 0; i < count; i++) {
+      sink.sample(samples[3 * i], samples[3 * i + 1], samples[3 * i + 2]);
+    }
+    count = 0;
+  }
+}
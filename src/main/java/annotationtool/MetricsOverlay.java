@@ -0,0 +1,65 @@
+package annotationtool;
+
+import annotationtool.metrics.Metrics;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.List;
+import javax.swing.Timer;
+
+/**
+ * The metrics summary drawn over the top left of the canvas, twice a second
+ * while it is shown. It is only ever on the screen, never in the drawing.
+ */
+final class MetricsOverlay {
+
+  private static final Rectangle AREA = new Rectangle(10, 10, 560, 170);
+  private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 14);
+
+  private final Timer refresh;
+  private boolean shown;
+
+  MetricsOverlay(Component canvas) {
+    refresh = new Timer(500, e -> canvas.repaint(AREA.x, AREA.y, AREA.width, AREA.height));
+  }
+
+  void toggle() {
+    shown = !shown;
+    if (shown) {
+      refresh.start();
+    } else {
+      refresh.stop();
+    }
+  }
+
+  boolean isShown() {
+    return shown;
+  }
+
+  /** The area the overlay covers, which has to be repainted when it goes. */
+  Rectangle area() {
+    return new Rectangle(AREA);
+  }
+
+  void paint(Graphics2D g) {
+    if (!shown) {
+      return;
+    }
+    g.setComposite(AlphaComposite.SrcOver);
+    g.setColor(new Color(0, 0, 0, 180));
+    g.fill(AREA);
+    g.setColor(Color.WHITE);
+    g.setFont(FONT);
+    FontMetrics fm = g.getFontMetrics();
+    int y = AREA.y + 6 + fm.getAscent();
+    List<String> lines = Metrics.summary();
+    for (String line : lines) {
+      g.drawString(line, AREA.x + 8, y);
+      y += fm.getHeight();
+    }
+  }
+}
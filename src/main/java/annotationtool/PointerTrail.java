@@ -0,0 +1,152 @@
+package annotationtool;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.util.Arrays;
+
+/**
+ * The laser pointer: a trail behind the mouse while it is pressed, fading
+ * out over {@code annotate.pointer.fadems} milliseconds (default 1000). Like
+ * the metrics overlay it is only ever on the screen, never in the drawing or
+ * its history. The points are kept in a ring of a fixed size
+ * ({@code annotate.pointer.points}, default 1024) that overwrites the oldest
+ * when it is full, so pointing for hours costs no more than pointing once.
+ * <p>
+ * Only touched on the EDT. The trail needs a frame each refresh while it is
+ * fading, and none at all once the last point has gone.
+ */
+final class PointerTrail {
+
+  private static final int CAPACITY =
+      Math.max(2, Integer.getInteger("annotate.pointer.points", 1024));
+  private static final long FADE_NANOS =
+      Math.max(1, Integer.getInteger("annotate.pointer.fadems", 1000)) * 1_000_000L;
+
+  private final int[] xs = new int[CAPACITY], ys = new int[CAPACITY];
+  private final long[] times = new long[CAPACITY];
+  private final boolean[] joined = new boolean[CAPACITY]; // to the point before
+  private int first, count; // the oldest point, and how many there are
+  private Rectangle shown; // where the trail was last drawn, null for nowhere
+
+  private Color color = Color.RED;
+  private final Color[] shades = new Color[256]; // color at each alpha, made as needed
+  private Stroke stroke = new BasicStroke(3, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+  private int reach = 4; // how far the stroke reaches beyond a point
+
+  /** Draws the trail with the pen chosen; paints that aren't a colour are red. */
+  void setPen(Paint paint, Stroke stroke) {
+    if (paint != null) {
+      color = paint instanceof Color c ? c : Color.RED;
+      Arrays.fill(shades, null);
+    }
+    if (stroke != null) {
+      this.stroke = stroke;
+      float width = stroke instanceof BasicStroke bs ? bs.getLineWidth() : 3;
+      reach = (int) Math.ceil(width / 2) + 2;
+    }
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Adds a point at time {@code now} (from {@link System#nanoTime}), joined
+   * to the one before unless it {@code starts} a new trail, and returns the
+   * area that has to be repainted to show it.
+   */
+  Rectangle add(int x, int y, boolean starts, long now) {
+    if (count == CAPACITY) {
+      first = (first + 1) % CAPACITY;
+      count--;
+    }
+    int i = (first + count) % CAPACITY;
+    xs[i] = x;
+    ys[i] = y;
+    times[i] = now;
+    joined[i] = !starts && count > 0;
+    count++;
+    Rectangle r = new Rectangle(x, y, 0, 0);
+    if (joined[i]) {
+      int before = (i + CAPACITY - 1) % CAPACITY;
+      r.add(xs[before], ys[before]);
+    }
+    r.grow(reach, reach);
+    shown = shown == null ? r : shown.union(r);
+    return r;
+  }
+
+  /**
+   * Lets go of the points that have faded out by {@code now}, and returns
+   * the area to repaint to show the trail as it is then, which includes
+   * wherever it was drawn before; null if there is no trail to show or take
+   * off the screen.
+   */
+  Rectangle fade(long now) {
+    while (count > 0 && now - times[first] >= FADE_NANOS) {
+      first = (first + 1) % CAPACITY;
+      count--;
+    }
+    Rectangle before = shown;
+    shown = null;
+    if (count > 0) {
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for (int k = 0; k < count; k++) {
+        int i = (first + k) % CAPACITY;
+        minX = Math.min(minX, xs[i]);
+        minY = Math.min(minY, ys[i]);
+        maxX = Math.max(maxX, xs[i]);
+        maxY = Math.max(maxY, ys[i]);
+      }
+      shown = new Rectangle(minX - reach, minY - reach,
+          maxX - minX + 2 * reach, maxY - minY + 2 * reach);
+    }
+    if (before == null) {
+      return shown;
+    }
+    return shown == null ? before : before.union(shown);
+  }
+
+  /** Draws the trail as it looks at {@code now}, each part fainter the older it is. */
+  void paint(Graphics2D g, long now) {
+    if (count == 0) {
+      return;
+    }
+    g.setComposite(AlphaComposite.SrcOver);
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setStroke(stroke);
+    for (int k = 0; k < count; k++) {
+      int i = (first + k) % CAPACITY;
+      boolean fromPrevious = k > 0 && joined[i];
+      int from = fromPrevious ? (i + CAPACITY - 1) % CAPACITY : i;
+      boolean alone = !fromPrevious && (k == count - 1 || !joined[(i + 1) % CAPACITY]);
+      if (!fromPrevious && !alone) {
+        continue; // the start of a trail, drawn with the segment after it
+      }
+      // a segment fades with its older end
+      long age = Math.max(0, now - times[from]);
+      long left = FADE_NANOS - Math.min(age, FADE_NANOS);
+      int alpha = (int) (color.getAlpha() * left / FADE_NANOS);
+      if (alpha > 0) {
+        g.setColor(shade(alpha));
+        g.drawLine(xs[from], ys[from], xs[i], ys[i]);
+      }
+    }
+  }
+
+  private Color shade(int alpha) {
+    Color c = shades[alpha];
+    if (c == null) {
+      c = new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+      shades[alpha] = c;
+    }
+    return c;
+  }
+}
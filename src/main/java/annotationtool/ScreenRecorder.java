@@ -0,0 +1,293 @@
+package annotationtool;
+
+import annotationtool.metrics.Metrics;
+import java.awt.AWTException;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Records the drawing window to Motion JPEG AVI files while a session goes
+ * on. Frames are grabbed at a steady rate on one thread, JPEG-encoded on a
+ * second and written on a third, handed along through bounded queues. A
+ * fixed set of frame images and encoding buffers goes round and round, so
+ * recording doesn't keep the garbage collector busy.
+ * <p>
+ * When encoding or the disk can't keep up, frames are dropped where they are
+ * grabbed instead of anything waiting, and each dropped frame is written as
+ * a repeat of the one before so that the video keeps time. A recording that
+ * reaches {@link AviWriter#MAX_BYTES} carries on in a second file, and so on.
+ */
+final class ScreenRecorder {
+
+  /** Draws the current frame into an image of the recording's size. */
+  interface Source {
+    void grab(BufferedImage into) throws Exception;
+  }
+
+  private static final int FPS = Math.max(1, Integer.getInteger("annotate.record.fps", 15));
+  // 0 (smallest) to 100 (best)
+  private static final int QUALITY = Integer.getInteger("annotate.record.quality", 80);
+  private static final int IMAGES = 3;
+  private static final int BUFFERS = 4;
+
+  // a frame grabbed at tick number seq (from the start of the recording)
+  private record Frame(BufferedImage image, long seq) {
+  }
+
+  // a frame encoded into the buffer
+  private static final class Encoded extends ByteArrayOutputStream {
+    long seq;
+
+    Encoded() {
+      super(512 * 1024);
+    }
+
+    byte[] data() {
+      return buf;
+    }
+  }
+
+  private static final Frame END_FRAME = new Frame(null, -1);
+  private static final Encoded END = new Encoded();
+
+  private final Path file;
+  private final int width, height;
+  private final Source source;
+  private final long periodNanos = 1_000_000_000L / FPS;
+  private final long startNanos = System.nanoTime();
+
+  private final BlockingQueue<BufferedImage> freeImages = new ArrayBlockingQueue<>(IMAGES);
+  private final BlockingQueue<Frame> toEncode = new ArrayBlockingQueue<>(IMAGES + 1);
+  private final BlockingQueue<Encoded> freeBuffers = new ArrayBlockingQueue<>(BUFFERS);
+  private final BlockingQueue<Encoded> toWrite = new ArrayBlockingQueue<>(BUFFERS + 1);
+
+  private final ScheduledExecutorService grabber = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().daemon().name("record-grab").factory());
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private final Thread exitHook = new Thread(this::finishOnExit);
+  private long lastSeq = -1; // grabber thread only
+  private volatile boolean failed;
+
+  // counts, written by one thread each and read by any
+  private volatile long written, repeated, encodedBytes, encodeNanos;
+
+  /**
+   * Starts recording frames from {@code source} into {@code file}, which
+   * gets {@code -2}, {@code -3}... added to its name for the files after it.
+   */
+  ScreenRecorder(Path file, int width, int height, Source source) throws IOException {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.source = source;
+    AviWriter first = new AviWriter(file, width, height, FPS);
+    for (int i = 0; i < IMAGES; i++) {
+      freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
+    }
+    for (int i = 0; i < BUFFERS; i++) {
+      freeBuffers.add(new Encoded());
+    }
+    Thread.ofPlatform().daemon().name("record-encode").start(this::encodeAll);
+    Thread.ofPlatform().daemon().name("record-write").start(() -> writeAll(first));
+    grabber.scheduleAtFixedRate(this::grab, 0, periodNanos, TimeUnit.NANOSECONDS);
+    Runtime.getRuntime().addShutdownHook(exitHook);
+  }
+
+  /**
+   * A source grabbing the given area of the screen, or null if screen
+   * capture isn't possible here.
+   */
+  static Source screen(Rectangle bounds) {
+    Robot robot;
+    try {
+      robot = new Robot();
+    } catch (AWTException | SecurityException ex) {
+      return null;
+    }
+    return into -> {
+      BufferedImage shot = robot.createScreenCapture(bounds);
+      Graphics2D g = into.createGraphics();
+      g.drawImage(shot, 0, 0, null);
+      g.dispose();
+    };
+  }
+
+  /**
+   * Stops grabbing frames. The ones already grabbed are still encoded and
+   * written, in the background, and then the statistics are printed.
+   */
+  synchronized void stop() {
+    try {
+      Runtime.getRuntime().removeShutdownHook(exitHook);
+    } catch (IllegalStateException exiting) {
+      // the hook is already running
+    }
+    if (!grabber.isShutdown()) {
+      // goes after any grab in progress
+      grabber.execute(() -> toEncode.add(END_FRAME));
+      grabber.shutdown();
+    }
+  }
+
+  private void finishOnExit() {
+    stop();
+    try {
+      finished.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  String stats() {
+    double seconds = encodeNanos / 1e9;
+    long encoded = written - repeated;
+    return String.format("%d frames of %dx%d at %d fps, %d dropped; encoding %.1f frames/s,"
+            + " %.1f ms and %d KB a frame",
+        written, width, height, FPS, repeated,
+        seconds > 0 ? encoded / seconds : 0, encoded > 0 ? encodeNanos / 1e6 / encoded : 0,
+        encoded > 0 ? encodedBytes / 1024 / encoded : 0);
+  }
+
+  private void grab() {
+    long seq = (System.nanoTime() - startNanos) / periodNanos;
+    if (seq <= lastSeq || failed) {
+      return;
+    }
+    lastSeq = seq;
+    // with nothing free the frame is dropped, and written as a repeat
+    BufferedImage image = freeImages.poll();
+    if (image == null) {
+      return;
+    }
+    try {
+      source.grab(image);
+    } catch (Exception ex) {
+      System.err.println("Recording stopped, couldn't grab a frame: " + ex);
+      freeImages.add(image);
+      failed = true;
+      return;
+    }
+    toEncode.add(new Frame(image, seq));
+  }
+
+  private void encodeAll() {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(Math.max(0, Math.min(100, QUALITY)) / 100F);
+    try {
+      while (true) {
+        Frame frame = toEncode.take();
+        if (frame == END_FRAME) {
+          break;
+        }
+        Encoded out = freeBuffers.take();
+        long start = System.nanoTime();
+        out.reset();
+        out.seq = frame.seq();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+          writer.setOutput(ios);
+          writer.write(null, new IIOImage(frame.image(), null, null), param);
+        } catch (IOException ioe) {
+          System.err.println("Recording stopped, couldn't encode a frame: " + ioe.getMessage());
+          failed = true;
+          out.reset(); // written as a repeat
+        } finally {
+          writer.reset();
+        }
+        freeImages.add(frame.image());
+        long took = System.nanoTime() - start;
+        encodeNanos += took;
+        encodedBytes += out.size();
+        Metrics.Timer.ENCODE.record(took);
+        toWrite.put(out);
+      }
+      toWrite.put(END);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  private void writeAll(AviWriter avi) {
+    int part = 1;
+    try {
+      while (true) {
+        Encoded frame = toWrite.take();
+        if (frame == END) {
+          break;
+        }
+        try {
+          if (avi != null && avi.size() + frame.size() + 16 > AviWriter.MAX_BYTES) {
+            avi.close();
+            avi = new AviWriter(partFile(++part), width, height, FPS);
+          }
+          if (avi != null) {
+            // frames dropped since the last one, then this one
+            for (long s = written; s < frame.seq; s++) {
+              avi.repeat();
+              repeated++;
+              written++;
+            }
+            if (frame.size() > 0) {
+              avi.frame(frame.data(), frame.size());
+            } else {
+              avi.repeat();
+              repeated++;
+            }
+            written++;
+          }
+        } catch (IOException ioe) {
+          System.err.println("Recording stopped, couldn't write " + file + ": " + ioe.getMessage());
+          failed = true;
+          avi = close(avi);
+        }
+        Metrics.recording(written, repeated);
+        freeBuffers.add(frame);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      close(avi);
+      System.out.println("Recorded " + file + (part > 1 ? " and " + (part - 1) + " more" : "")
+          + ": " + stats());
+      finished.countDown();
+    }
+  }
+
+  private Path partFile(int part) {
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return file.resolveSibling(dot < 0 ? name + "-" + part
+        : name.substring(0, dot) + "-" + part + name.substring(dot));
+  }
+
+  private AviWriter close(AviWriter avi) {
+    if (avi != null) {
+      try {
+        avi.close();
+      } catch (IOException ioe) {
+        System.err.println("Couldn't finish " + file + ": " + ioe.getMessage());
+      }
+    }
+    return null;
+  }
+}
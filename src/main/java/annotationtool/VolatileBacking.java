@@ -0,0 +1,102 @@
+package annotationtool;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.VolatileImage;
+
+/**
+ * Accelerated (video memory) images that the main and scratch surfaces keep
+ * their composite in. The drawing itself is in the surfaces' layers on the
+ * heap, so these only speed up getting it to the screen. The contents of a
+ * {@link VolatileImage} can be thrown away by the system at any time, so
+ * {@link #validate} has to be called before painting, and when it reports a
+ * loss the caller hands the new images to the surfaces, which composite
+ * their layers into them again; nothing is replayed from the history.
+ */
+final class VolatileBacking {
+
+  private final int width, height;
+  private VolatileImage main;
+  private VolatileImage scratch;
+
+  private VolatileBacking(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Creates the backing images, or returns null if the configuration can't
+   * give us accelerated translucent images.
+   */
+  static VolatileBacking create(GraphicsConfiguration gc, int width, int height) {
+    VolatileBacking vb = new VolatileBacking(width, height);
+    vb.main = vb.allocate(gc);
+    vb.scratch = vb.allocate(gc);
+    if (!vb.main.getCapabilities().isAccelerated()
+        || !vb.scratch.getCapabilities().isAccelerated()) {
+      vb.main.flush();
+      vb.scratch.flush();
+      return null;
+    }
+    return vb;
+  }
+
+  /**
+   * Decides between this and the plain {@code createImage} path, based on the
+   * {@code annotate.render} setting: "software", "accelerated", or "auto"
+   * (the default) which uses acceleration only where the device has it and
+   * can also show per-pixel translucent windows if the window needs them.
+   */
+  static boolean wanted(GraphicsDevice device, boolean translucentWindow) {
+    String mode = System.getProperty("annotate.render", "auto");
+    switch (mode) {
+      case "software":
+        return false;
+      case "accelerated":
+        return true;
+      default:
+        if (!mode.equals("auto")) {
+          System.err.println("Unknown annotate.render mode " + mode + ", using auto");
+        }
+        GraphicsConfiguration gc = device.getDefaultConfiguration();
+        return gc.getImageCapabilities().isAccelerated()
+            && (!translucentWindow || device.isWindowTranslucencySupported(
+                GraphicsDevice.WindowTranslucency.PERPIXEL_TRANSLUCENT));
+    }
+  }
+
+  Image main() {
+    return main;
+  }
+
+  Image scratch() {
+    return scratch;
+  }
+
+  /**
+   * Makes sure both images are usable on {@code gc}. Returns true if either
+   * lost its contents, in which case both must be composited again.
+   */
+  boolean validate(GraphicsConfiguration gc) {
+    boolean lost = false;
+    int code = main.validate(gc);
+    if (code == VolatileImage.IMAGE_INCOMPATIBLE) {
+      main.flush();
+      main = allocate(gc);
+    }
+    lost |= code != VolatileImage.IMAGE_OK;
+    code = scratch.validate(gc);
+    if (code == VolatileImage.IMAGE_INCOMPATIBLE) {
+      scratch.flush();
+      scratch = allocate(gc);
+    }
+    lost |= code != VolatileImage.IMAGE_OK;
+    return lost || main.contentsLost() || scratch.contentsLost();
+  }
+
+  private VolatileImage allocate(GraphicsConfiguration gc) {
+    return gc.createCompatibleVolatileImage(width, height, Transparency.TRANSLUCENT);
+  }
+}
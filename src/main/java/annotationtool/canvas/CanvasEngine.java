@@ -0,0 +1,445 @@
+package annotationtool.canvas;
+
+import annotationtool.metrics.Metrics;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * The drawing itself, without a window: the picture, its undo/redo history,
+ * the stroke being drawn, and the journal the history is kept in. It needs no
+ * display, so it runs under {@code java.awt.headless=true}.
+ * <p>
+ * Two surfaces of the canvas size are drawn on: the main one holds the
+ * committed drawing and the scratch one holds the main one with the stroke
+ * in progress on top, see {@link #frame()}. Each is a
+ * {@link LayeredSurface}, with backgrounds, highlighters and ink on layers
+ * of their own, composited into a surface the engine is given. By default
+ * these are {@link TiledSurface}s, which only use memory where something was
+ * drawn; a window can supply accelerated images instead, and hand over
+ * replacements with {@link #replaceSurfaces} when their contents are lost.
+ * <p>
+ * The drawing can have several pages, like a slide deck, each with its own
+ * history and journal, and the surfaces show one of them at a time. The
+ * pages next to that one are kept ready to show, so that stepping through
+ * them is a copy; the rest are {@link Page parked} until they are needed.
+ * <p>
+ * Like the Swing components it is normally driven from, an engine is only
+ * ever used from one thread at a time.
+ */
+public final class CanvasEngine {
+
+  private interface JournalAction {
+    void apply(Journal journal) throws IOException;
+  }
+
+  // pages kept ready to show on either side of the one being drawn on
+  private static final int KEEP_NEAR = Integer.getInteger("annotate.pages.keep", 1);
+
+  private final int width, height;
+  private final Color clearPaint;
+  private final List<Page> pages = new ArrayList<>();
+  private int pageIndex;
+  private Page page; // the one being drawn on
+  private History history; // the page's
+  private Path journalPath; // the first page's journal, null when not journalling
+  private final LayeredSurface main, scratch;
+  private LiveStroke live; // shape in progress...
+  private volatile Consumer<String> problemListener;
+  // false when main has changed since it was last copied to scratch
+  private boolean scratchInSync;
+
+  /** An engine drawing on tiled surfaces of its own. */
+  public CanvasEngine(int width, int height, Color clearPaint) {
+    this(new TiledSurface(width, height), new TiledSurface(width, height), clearPaint);
+  }
+
+  /**
+   * An engine drawing on the given surfaces, which must be the same size.
+   * Their contents don't matter; the main one is cleared to start with.
+   */
+  public CanvasEngine(Surface main, Surface scratch, Color clearPaint) {
+    this.width = main.width();
+    this.height = main.height();
+    this.clearPaint = clearPaint;
+    this.main = new LayeredSurface(main);
+    this.scratch = new LayeredSurface(scratch);
+    history = History.fromProperties(width, height, clearPaint);
+    page = new Page(history, null, this::problem);
+    page.ready();
+    pages.add(page);
+    redraw();
+  }
+
+  /**
+   * The journal file set by the {@code annotate.journal} property, the
+   * default one if journalling is on by default, or null for none.
+   */
+  public static Path configuredJournal(boolean defaultOn) {
+    return Journal.configuredPath(defaultOn);
+  }
+
+  /**
+   * An engine with the history recorded in a journal, sized for the canvas
+   * the journal was made on.
+   */
+  public static CanvasEngine fromJournal(Path path, Color clearPaint) throws IOException {
+    int[] size = Journal.canvasSize(path);
+    CanvasEngine engine = new CanvasEngine(size[0], size[1], clearPaint);
+    engine.openJournal(path);
+    return engine;
+  }
+
+  /**
+   * Has {@code listener} told about problems the user should know of, such
+   * as the journal being turned off, as well as printing them. It may be
+   * called on a background thread.
+   */
+  public void setProblemListener(Consumer<String> listener) {
+    problemListener = listener;
+  }
+
+  private void problem(String message) {
+    System.err.println(message);
+    Consumer<String> listener = problemListener;
+    if (listener != null) {
+      listener.accept(message);
+    }
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  public Color clearPaint() {
+    return clearPaint;
+  }
+
+  /**
+   * Rebuilds the pages and the picture from the journals of an earlier run,
+   * then records everything that happens from now on to them; this is done
+   * before anything is drawn. The first page is read straight away, the
+   * others in the background or when they are first shown. A page whose
+   * journal can't be used carries on without one.
+   */
+  public void openJournal(Path path) {
+    if (journalPath == null) {
+      // what was handed to the journals' writers goes in before the program exits
+      Runtime.getRuntime().addShutdownHook(new Thread(this::closeJournals));
+    }
+    closeJournals();
+    journalPath = path;
+    pages.clear();
+    page = new Page(history, path, this::problem);
+    pages.add(page);
+    for (int i = 1, count = Journal.pageCount(path); i < count; i++) {
+      pages.add(newPage(i));
+    }
+    pageIndex = 0;
+    page.ready();
+    redraw();
+    changed();
+    keepNear(0, 0);
+  }
+
+  // closes every page's journal; pages may be added while this runs, at exit
+  private void closeJournals() {
+    for (Page p : pages.toArray(new Page[0])) {
+      p.closeJournal();
+    }
+  }
+
+  /** The page being drawn on, counting from 0. */
+  public int page() {
+    return pageIndex;
+  }
+
+  public int pageCount() {
+    return pages.size();
+  }
+
+  /**
+   * Shows page {@code index}, counting from 0, and draws on it from now on;
+   * one past the last page starts a new, blank one. A stroke in progress is
+   * committed to the page it was drawn on first. Returns the area of the
+   * canvas that changed, or null if nothing did.
+   */
+  public Rectangle goToPage(int index) {
+    if (index < 0 || index > pages.size()) {
+      throw new IndexOutOfBoundsException("No page " + index + " of " + pages.size());
+    }
+    if (index == pageIndex) {
+      return null;
+    }
+    endStroke();
+    long start = Metrics.start();
+    history.hold(main);
+    if (index == pages.size()) {
+      pages.add(newPage(index));
+    }
+    int from = pageIndex;
+    pageIndex = index;
+    page = pages.get(index);
+    history = page.history;
+    page.ready();
+    Rectangle dirty = redraw();
+    changed();
+    keepNear(from, index);
+    Metrics.Timer.PAGE.stop(start);
+    return dirty;
+  }
+
+  /**
+   * Commits a whole stroke through the given points, interleaved x,y, as if
+   * it had been drawn with the mouse.
+   */
+  public void commitStroke(Stroke stroke, Paint paint, float[] xy) {
+    if (xy.length < 2 || xy.length % 2 != 0) {
+      throw new IllegalArgumentException("Need x,y pairs, got " + xy.length + " values");
+    }
+    float[] pts = xy.clone();
+    int count = StrokeSimplifier.simplify(pts, pts.length / 2,
+        StrokeSimplifier.tolerance(stroke));
+    commitShape(new ShapeDef(stroke, paint, StrokeSimplifier.toPath(pts, count), null));
+  }
+
+  /** Covers the whole canvas with {@code paint}; this can be undone. */
+  public void clear(Paint paint) {
+    commitShape(ShapeDef.clear(paint));
+  }
+
+  /** Clears the canvas and forgets everything that could be undone or redone. */
+  public void clearHistory() {
+    clear(clearPaint);
+    history.clear();
+    journal(Journal::clearHistory);
+    changed();
+  }
+
+  /**
+   * Reads a picture file and shrinks it to fit the canvas, ready for
+   * {@link #loadImage}, telling {@code progress} the percentage done as it
+   * goes. This doesn't touch the drawing, so unlike everything else here it
+   * can run on another thread while the engine is in use.
+   */
+  public BufferedImage readImage(Path file, IntConsumer progress) throws IOException {
+    return ImageScaler.read(file, width, height, progress);
+  }
+
+  /**
+   * Starts a fresh history with a picture, shrunk to fit the canvas if it is
+   * bigger.
+   */
+  public void loadImage(BufferedImage image) {
+    BufferedImage fitted = ImageScaler.fitWithin(image, width, height);
+    clearHistory();
+    commitShape(new ShapeDef(null, null, null, new StoredImage(fitted)));
+  }
+
+  /**
+   * Erases the committed strokes that pass within {@code radius} of the
+   * point; this can be undone. Returns the area of the canvas that changed,
+   * or null if there was nothing there to erase.
+   */
+  public Rectangle eraseAt(float x, float y, float radius) {
+    int[] hits = history.strokesAt(x, y, radius);
+    if (hits.length == 0) {
+      return null;
+    }
+    long start = Metrics.start();
+    main.takeDirty(); // forget what was drawn before
+    recordCommit(ShapeDef.erase(hits)); // which redraws what was under them
+    scratchInSync = false;
+    Metrics.Timer.COMMIT.stop(start);
+    return main.takeDirty();
+  }
+
+  /**
+   * Returns the area of the canvas that changed, or null if nothing did
+   * (as when there was nothing to undo).
+   */
+  public Rectangle undo() {
+    ShapeDef s = history.undo();
+    if (s == null) {
+      return null;
+    }
+    journal(Journal::undo);
+    changed();
+    return redrawChange(s, false);
+  }
+
+  public Rectangle redo() {
+    ShapeDef s = history.redo();
+    if (s == null) {
+      return null;
+    }
+    journal(Journal::redo);
+    changed();
+    return redrawChange(s, true);
+  }
+
+  /**
+   * Starts drawing a stroke at the given point. Until it ends, the stroke is
+   * only drawn on the scratch surface.
+   */
+  public void beginStroke(Stroke stroke, Paint paint, float x, float y) {
+    live = new LiveStroke(scratch, scratchInSync ? null : main, stroke, paint, x, y);
+    scratchInSync = true;
+  }
+
+  /**
+   * Extends the stroke in progress, returning the area of the frame that
+   * changed, or null if nothing did.
+   */
+  public Rectangle extendStroke(float x, float y) {
+    return live != null ? live.lineTo(x, y) : null;
+  }
+
+  /**
+   * Commits the stroke in progress, returning the area of the frame that
+   * changed, or null if nothing did.
+   */
+  public Rectangle endStroke() {
+    if (live == null) {
+      return null;
+    }
+    live.flush();
+    long start = Metrics.start();
+    Rectangle dirty = live.touched();
+    recordCommit(live.finish(main));
+    live = null;
+    Metrics.Timer.COMMIT.stop(start);
+    return dirty;
+  }
+
+  public boolean isStroking() {
+    return live != null;
+  }
+
+  /**
+   * What should be on screen: the scratch surface while a stroke is in
+   * progress (it holds the main one with the stroke drawn over it),
+   * otherwise the main surface.
+   */
+  public Surface frame() {
+    return live != null ? scratch : main;
+  }
+
+  /**
+   * The committed drawing on every page, as it is now, to be written out as
+   * SVG or PDF; see {@link VectorExport}.
+   */
+  public VectorExport vectorExport() {
+    List<History> histories = new ArrayList<>(pages.size());
+    for (Page p : pages) {
+      histories.add(p == page ? history : p.settled());
+    }
+    return new VectorExport(width, height, histories, pageIndex);
+  }
+
+  /** A copy of the committed drawing. */
+  public BufferedImage render() {
+    return main.toImage();
+  }
+
+  /**
+   * Switches to new surfaces after the old ones lost their contents. The
+   * layers the drawing (and any stroke in progress) are kept in weren't on
+   * them, so they are only composited again, when next painted.
+   */
+  public void replaceSurfaces(Surface main, Surface scratch) {
+    this.main.retarget(main);
+    this.scratch.retarget(scratch);
+  }
+
+  public String stats() {
+    return "page " + (pageIndex + 1) + " of " + pages.size() + ", " + history.stats();
+  }
+
+  private Page newPage(int index) {
+    return new Page(History.fromProperties(width, height, clearPaint),
+        journalPath != null ? Journal.pagePath(journalPath, index) : null, this::problem);
+  }
+
+  // keeps the pages near the current one ready to show, and parks those
+  // that are no longer near it
+  private void keepNear(int from, int to) {
+    for (int i = Math.max(0, from - KEEP_NEAR);
+        i <= Math.min(pages.size() - 1, from + KEEP_NEAR); i++) {
+      if (Math.abs(i - to) > KEEP_NEAR) {
+        pages.get(i).park();
+      }
+    }
+    for (int i = Math.max(0, to - KEEP_NEAR);
+        i <= Math.min(pages.size() - 1, to + KEEP_NEAR); i++) {
+      if (i != to) {
+        pages.get(i).prefetch();
+      }
+    }
+  }
+
+  // returns the area that changed
+  private Rectangle redraw() {
+    long start = Metrics.start();
+    main.takeDirty(); // forget what was drawn before
+    history.render(main);
+    scratchInSync = false;
+    Metrics.Timer.REPLAY.stop(start);
+    return main.takeDirty();
+  }
+
+  // like redraw(), but only where undoing or redoing s changed anything
+  private Rectangle redrawChange(ShapeDef s, boolean redone) {
+    long start = Metrics.start();
+    main.takeDirty();
+    history.renderChange(main, s, redone);
+    scratchInSync = false;
+    Metrics.Timer.REPLAY.stop(start);
+    return main.takeDirty();
+  }
+
+  private void commitShape(ShapeDef s) {
+    long start = Metrics.start();
+    s.drawOn(main);
+    scratchInSync = false;
+    recordCommit(s);
+    Metrics.Timer.COMMIT.stop(start);
+  }
+
+  // push a shape that has already been drawn on main
+  private void recordCommit(ShapeDef s) {
+    ShapeDef stored = history.push(s, main);
+    journal(j -> {
+      j.commit(stored);
+      j.maybeSnapshot(history.absoluteDepth(), main);
+    });
+    changed();
+  }
+
+  private void changed() {
+    Metrics.history(history.depth(), history.redoDepth(), history.heapBytes());
+  }
+
+  private void journal(JournalAction action) {
+    if (page.journal != null) {
+      try {
+        action.apply(page.journal);
+      } catch (IOException ioe) {
+        problem("Journal write failed, no longer journalling: " + ioe.getMessage());
+        page.closeJournal();
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package annotationtool.canvas;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Snapshots of the main surface, taken every few commits so that undo and
+ * redo only replay the shapes above the nearest snapshot instead of the
+ * whole history. Snapshots of a tiled surface share the tiles that haven't
+ * changed, so they usually cost far less than a full raster each.
+ */
+final class Checkpoints {
+
+  record Checkpoint(int depth, Surface image) {
+  }
+
+  private final int interval;
+  private final long budgetBytes;
+  // ordered by ascending depth
+  private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<>();
+  private Surface spare; // recycled raster from an evicted checkpoint
+
+  Checkpoints(int interval, long budgetBytes) {
+    this.interval = interval;
+    this.budgetBytes = budgetBytes;
+  }
+
+  static Checkpoints fromProperties() {
+    int interval = Integer.getInteger("annotate.checkpoint.interval", 25);
+    long budgetMb = Long.getLong("annotate.checkpoint.budgetmb", 256);
+    return new Checkpoints(interval, budgetMb * 1024 * 1024);
+  }
+
+  /**
+   * Called after the shape at {@code depth} (1 being the bottom of the undo
+   * stack) has been drawn into {@code source}. Any snapshot at or above that
+   * depth described a different history and is dropped. A null source (the
+   * shape wasn't drawn, as when reloading a journal) takes no snapshot.
+   */
+  void committed(int depth, Surface source) {
+    discardFrom(depth);
+    if (source != null && interval > 0 && depth % interval == 0) {
+      take(depth, source);
+    }
+  }
+
+  /**
+   * Returns the deepest snapshot at or below {@code depth}, or null if the
+   * replay has to start from a blank canvas.
+   */
+  Checkpoint nearest(int depth) {
+    Iterator<Checkpoint> it = checkpoints.descendingIterator();
+    while (it.hasNext()) {
+      Checkpoint cp = it.next();
+      if (cp.depth() <= depth) {
+        return cp;
+      }
+    }
+    return null;
+  }
+
+  /** Adds a snapshot made elsewhere, replacing any at or above its depth. */
+  void seed(int depth, Surface image) {
+    discardFrom(depth);
+    checkpoints.addLast(new Checkpoint(depth, image));
+  }
+
+  /**
+   * Renumbers the snapshots after the bottom {@code count} shapes of the
+   * history were folded into its base image; snapshots from within that
+   * range are no longer of any use.
+   */
+  void flattened(int count) {
+    ArrayDeque<Checkpoint> kept = new ArrayDeque<>();
+    for (Checkpoint cp : checkpoints) {
+      if (cp.depth() > count) {
+        kept.addLast(new Checkpoint(cp.depth() - count, cp.image()));
+      } else {
+        spare = cp.image();
+      }
+    }
+    checkpoints.clear();
+    checkpoints.addAll(kept);
+  }
+
+  void clear() {
+    checkpoints.clear();
+    spare = null;
+  }
+
+  private void discardFrom(int depth) {
+    while (!checkpoints.isEmpty() && checkpoints.peekLast().depth() >= depth) {
+      spare = checkpoints.pollLast().image();
+    }
+  }
+
+  private void take(int depth, Surface source) {
+    long bytes = source.heapBytes();
+    if (bytes > budgetBytes) {
+      return;
+    }
+    long held = 0;
+    for (Checkpoint cp : checkpoints) {
+      held += cp.image().heapBytes();
+    }
+    while (!checkpoints.isEmpty() && held + bytes > budgetBytes) {
+      spare = checkpoints.pollFirst().image();
+      held -= spare.heapBytes();
+    }
+
+    Surface copy = source.snapshot(spare);
+    spare = null;
+    checkpoints.addLast(new Checkpoint(depth, copy));
+  }
+}
@@ -0,0 +1,40 @@
+package annotationtool.canvas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of distinct values (strokes, paints) so that history entries share
+ * one instance of each, and each value has a small stable index.
+ */
+final class Dictionary<T> {
+
+  private final Map<T, Integer> indexes = new HashMap<>();
+  private final List<T> values = new ArrayList<>();
+
+  /** Returns the index of {@code value}, adding it if it is new. */
+  int indexOf(T value) {
+    Integer index = indexes.get(value);
+    if (index == null) {
+      index = values.size();
+      values.add(value);
+      indexes.put(value, index);
+    }
+    return index;
+  }
+
+  /** Returns the shared instance equal to {@code value}. */
+  T intern(T value) {
+    return value == null ? null : values.get(indexOf(value));
+  }
+
+  T get(int index) {
+    return values.get(index);
+  }
+
+  int size() {
+    return values.size();
+  }
+}
@@ -0,0 +1,588 @@
+package annotationtool.canvas;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The undo and redo stacks, plus the raster checkpoints taken along the way.
+ * <p>
+ * Entries share their strokes and paints through dictionaries and keep their
+ * points in {@link PackedPath}s. The estimated heap use of all entries is kept
+ * under a budget: first by spilling images to compressed form, then by
+ * forgetting the redo entries furthest from the present, and finally by
+ * flattening the oldest undo entries into a base surface which replays start
+ * from instead of a blank canvas.
+ * <p>
+ * The strokes and images in the undo stack are also kept in a
+ * {@link ShapeIndex}, which finds the strokes under the eraser and lets a
+ * change to one part of the canvas be redrawn from only the entries that
+ * reach that part. Erasing pushes an entry that hides the strokes it names
+ * while it is in the undo stack, so it is undone like anything else.
+ */
+final class History {
+
+  // never flatten the history down to fewer undoable entries than this
+  private static final int MIN_UNDO = 10;
+
+  private final Deque<ShapeDef> undoStack = new ArrayDeque<>();
+  private final Deque<ShapeDef> redoStack = new ArrayDeque<>();
+  private final Checkpoints checkpoints;
+  private final Dictionary<Stroke> strokes = new Dictionary<>();
+  private final Dictionary<Paint> paints = new Dictionary<>();
+  private final ShapeIndex index;
+  // what each erase entry in either stack hides; a redone erase hides those
+  // of them that are in the undo stack at the time
+  private final Map<ShapeDef, ShapeDef[]> eraseTargets = new IdentityHashMap<>();
+
+  private final int width, height;
+  private final Color clearPaint;
+  private final long budgetBytes;
+  private long heapBytes;
+  private LayeredSurface base; // the flattened bottom of the history, if any
+  private int flattenedBelow; // entries in base since the last clear
+  // depths of the clear entries in the undo stack, lowest first, and their paints
+  private int[] clearDepths = new int[16];
+  private Paint[] clearPaints = new Paint[16];
+  private int clearCount;
+  // absolute depths of the erase entries in the undo stack, lowest first, and
+  // the lowest absolute depth each one hides
+  private int[] eraseDepths = new int[16];
+  private int[] eraseFloors = new int[16];
+  private int eraseCount;
+  private long flattenedCount;
+
+  History(int width, int height, Color clearPaint, Checkpoints checkpoints, long budgetBytes) {
+    this.width = width;
+    this.height = height;
+    this.clearPaint = clearPaint;
+    this.checkpoints = checkpoints;
+    this.budgetBytes = budgetBytes;
+    index = new ShapeIndex(width, height);
+  }
+
+  static History fromProperties(int width, int height, Color clearPaint) {
+    long budgetMb = Long.getLong("annotate.history.budgetmb", 128);
+    return new History(width, height, clearPaint, Checkpoints.fromProperties(),
+        budgetMb * 1024 * 1024);
+  }
+
+  int width() {
+    return width;
+  }
+
+  int height() {
+    return height;
+  }
+
+  int depth() {
+    return undoStack.size();
+  }
+
+  int redoDepth() {
+    return redoStack.size();
+  }
+
+  /** The estimated heap use of the entries and the base surface. */
+  long heapBytes() {
+    return heapBytes;
+  }
+
+  /** The depth counting entries that were flattened into the base surface. */
+  int absoluteDepth() {
+    return flattenedBelow + undoStack.size();
+  }
+
+  Dictionary<Stroke> strokes() {
+    return strokes;
+  }
+
+  Dictionary<Paint> paints() {
+    return paints;
+  }
+
+  /**
+   * Adds a shape that has just been drawn onto {@code rendered}, and returns
+   * the entry as stored. When rebuilding a history without drawing it,
+   * {@code rendered} is null and the budget isn't enforced until
+   * {@link #enforceBudget} is called.
+   */
+  ShapeDef push(ShapeDef s, Surface rendered) {
+    s = new ShapeDef(strokes.intern(s.stroke()), paints.intern(s.paint()), s.shape(), s.img(),
+        s.erased());
+    if (s.isErase()) {
+      ShapeDef[] targets = new ShapeDef[s.erased().length];
+      for (int i = 0; i < targets.length; i++) {
+        ShapeIndex.Entry e = index.at(s.erased()[i]);
+        if (e == null) {
+          throw new IllegalArgumentException("Nothing to erase at " + s.erased()[i]);
+        }
+        targets[i] = e.shape;
+      }
+      eraseTargets.put(s, targets);
+      // the erase isn't on the stack yet, so no checkpoint of it is used
+      Rectangle changed = applyErase(s);
+      if (rendered != null) {
+        renderRegion(erasedPart(rendered, targets), changed);
+      }
+    }
+    undoStack.push(s);
+    added(s);
+    heapBytes += s.heapBytes();
+    checkpoints.committed(undoStack.size(), rendered);
+    if (rendered != null) {
+      enforceBudget();
+    }
+    return s;
+  }
+
+  /** Moves the top entry to the redo stack, returning it, or null if none. */
+  ShapeDef undo() {
+    if (undoStack.isEmpty()) {
+      return null;
+    }
+    if (clearCount > 0 && clearDepths[clearCount - 1] == undoStack.size()) {
+      clearCount--;
+    }
+    ShapeDef sd = undoStack.pop();
+    if (sd.isErase()) {
+      eraseCount--;
+      for (ShapeDef t : eraseTargets.get(sd)) {
+        ShapeIndex.Entry e = index.of(t);
+        if (e != null) {
+          index.show(e);
+        }
+      }
+    } else {
+      index.remove(sd);
+    }
+    redoStack.push(sd);
+    return sd;
+  }
+
+  ShapeDef redo() {
+    if (redoStack.isEmpty()) {
+      return null;
+    }
+    ShapeDef sd = redoStack.pop();
+    if (sd.isErase()) {
+      applyErase(sd);
+    }
+    undoStack.push(sd);
+    added(sd);
+    return sd;
+  }
+
+  // records an entry that is now the top of the undo stack
+  private void added(ShapeDef s) {
+    if (s.isClear()) {
+      if (clearCount == clearDepths.length) {
+        clearDepths = Arrays.copyOf(clearDepths, 2 * clearCount);
+        clearPaints = Arrays.copyOf(clearPaints, 2 * clearCount);
+      }
+      clearDepths[clearCount] = undoStack.size();
+      clearPaints[clearCount++] = s.paint();
+    } else if (!s.isErase()) {
+      index.add(absoluteDepth(), s);
+    }
+  }
+
+  // hides the targets of an erase that is about to go on top of the undo
+  // stack, returning the area they covered
+  private Rectangle applyErase(ShapeDef erase) {
+    Rectangle changed = null;
+    int floor = Integer.MAX_VALUE;
+    for (ShapeDef t : eraseTargets.get(erase)) {
+      ShapeIndex.Entry e = index.of(t);
+      if (e != null) {
+        index.hide(e);
+        floor = Math.min(floor, e.depth);
+        changed = changed == null ? new Rectangle(e.bounds) : changed.union(e.bounds);
+      }
+    }
+    if (eraseCount == eraseDepths.length) {
+      eraseDepths = Arrays.copyOf(eraseDepths, 2 * eraseCount);
+      eraseFloors = Arrays.copyOf(eraseFloors, 2 * eraseCount);
+    }
+    eraseDepths[eraseCount] = absoluteDepth() + 1;
+    eraseFloors[eraseCount++] = floor;
+    return changed;
+  }
+
+  /**
+   * The absolute depths, lowest first, of the visible strokes since the last
+   * clear that pass within {@code radius} of the point.
+   */
+  int[] strokesAt(float x, float y, float radius) {
+    return index.hitTest(x, y, radius, flattenedBelow + lastClearDepth());
+  }
+
+  /**
+   * The depth of the topmost clear in the undo stack, or 0 if there is none.
+   * Nothing below it can show, so replays can start from it.
+   */
+  int lastClearDepth() {
+    return clearCount > 0 ? clearDepths[clearCount - 1] : 0;
+  }
+
+  void clear() {
+    undoStack.forEach(ShapeDef::release);
+    redoStack.forEach(ShapeDef::release);
+    undoStack.clear();
+    redoStack.clear();
+    index.clear();
+    eraseTargets.clear();
+    eraseCount = 0;
+    checkpoints.clear();
+    base = null;
+    flattenedBelow = 0;
+    Arrays.fill(clearPaints, null);
+    clearCount = 0;
+    heapBytes = 0;
+  }
+
+  /**
+   * Supplies a picture of the canvas with the bottom {@code depth} entries
+   * drawn, either flat or with its layers stacked as a journal saves them.
+   */
+  void seedCheckpoint(int depth, BufferedImage image) {
+    checkpoints.seed(depth, LayeredSurface.fromImage(image, width, height));
+  }
+
+  /**
+   * Keeps a copy of {@code rendered}, which shows the undo stack as it is, as
+   * a checkpoint, unless there already is one.
+   */
+  void hold(Surface rendered) {
+    if (picture() == null) {
+      checkpoints.seed(depth(), rendered.snapshot(null));
+    }
+  }
+
+  /** The checkpoint that shows the undo stack as it is, or null if there is none. */
+  Surface picture() {
+    Checkpoints.Checkpoint cp = checkpoints.nearest(depth());
+    // nothing can be erased above a checkpoint at the top
+    return cp != null && cp.depth() == depth() ? cp.image() : null;
+  }
+
+  /** Draws the undo stack onto a new layered surface and holds that. */
+  void renderPicture() {
+    LayeredSurface picture = new LayeredSurface(width, height);
+    render(picture);
+    checkpoints.seed(depth(), picture);
+  }
+
+  /**
+   * Lets go of everything kept only to make drawing faster while the history
+   * isn't in use: the checkpoints, and the pictures in either stack, which
+   * are compressed.
+   */
+  void park() {
+    checkpoints.clear();
+    spillImages(undoStack.descendingIterator(), 0);
+    spillImages(redoStack.iterator(), 0);
+  }
+
+  // where a replay can start: the picture (or plain paint) of the canvas with
+  // the bottom depth entries of the undo stack drawn
+  private record Start(int depth, Surface image, Paint paint) {
+  }
+
+  // the most recent clear or, failing that, the nearest checkpoint that
+  // nothing erased since has changed
+  private Start start() {
+    int clearDepth = lastClearDepth();
+    Checkpoints.Checkpoint cp = checkpoints.nearest(depth());
+    while (cp != null && cp.depth() >= clearDepth) {
+      int erased = lowestErasedAbove(cp.depth());
+      if (erased > cp.depth()) {
+        return new Start(cp.depth(), cp.image(), null);
+      }
+      cp = checkpoints.nearest(erased - 1);
+    }
+    if (clearDepth > 0) {
+      return new Start(clearDepth, null, clearPaints[clearCount - 1]);
+    }
+    return new Start(0, base, clearPaint);
+  }
+
+  // the lowest depth hidden by an erase above the given depth
+  private int lowestErasedAbove(int depth) {
+    int lowest = Integer.MAX_VALUE;
+    for (int i = eraseCount - 1; i >= 0 && eraseDepths[i] > flattenedBelow + depth; i--) {
+      lowest = Math.min(lowest, eraseFloors[i] - flattenedBelow);
+    }
+    return lowest;
+  }
+
+  /**
+   * Draws the canvas as the undo stack describes it. Replay starts from the
+   * most recent clear or, failing that, the nearest usable checkpoint, so
+   * only the shapes above that are drawn, and each only where it reaches.
+   * Long replays onto a tiled surface are spread over the tiles in parallel.
+   */
+  void render(Surface target) {
+    Start start = start();
+    if (start.image() != null) {
+      target.copyFrom(start.image());
+    } else {
+      target.fill(start.paint());
+    }
+    ShapeDef[] tail = tail(start.depth());
+    int kept = 0;
+    for (ShapeDef s : tail) {
+      if (!s.isErase() && !index.isHidden(s)) {
+        tail[kept++] = s;
+      }
+    }
+    target.drawAll(Arrays.copyOf(tail, kept));
+  }
+
+  /**
+   * Brings {@code target}, which showed the canvas before {@code s} was
+   * undone or redone, up to date with the undo stack. Only what lies under
+   * the entry (or under what it erased) is redrawn, from the entries the
+   * index finds there.
+   */
+  void renderChange(Surface target, ShapeDef s, boolean redone) {
+    if (redone && !s.isErase()) {
+      s.drawOn(target);
+    } else if (s.isClear()) {
+      render(target);
+    } else if (s.isErase()) {
+      ShapeDef[] targets = eraseTargets.get(s);
+      Rectangle changed = null;
+      for (ShapeDef t : targets) {
+        ShapeIndex.Entry e = index.of(t);
+        if (e != null) {
+          changed = changed == null ? new Rectangle(e.bounds) : changed.union(e.bounds);
+        }
+      }
+      renderRegion(erasedPart(target, targets), changed);
+    } else {
+      // only the layer the entry is on looks any different
+      renderRegion(Layer.erases(s) ? target : target.part(Layer.of(s)), s.bounds());
+    }
+  }
+
+  // the layer of target that erasing the targets changes, or all of it when
+  // they are on different layers or one of them erased every layer
+  private static Surface erasedPart(Surface target, ShapeDef[] targets) {
+    Layer layer = null;
+    for (ShapeDef t : targets) {
+      if (Layer.erases(t) || layer != null && Layer.of(t) != layer) {
+        return target;
+      }
+      layer = Layer.of(t);
+    }
+    return layer != null ? target.part(layer) : target;
+  }
+
+  // redraws the part of target under area (null for none)
+  private void renderRegion(Surface target, Rectangle area) {
+    Rectangle r = area != null ? area.intersection(target.bounds()) : null;
+    if (r == null || r.isEmpty()) {
+      return;
+    }
+    Start start = start();
+    if (start.image() != null) {
+      target.copyFrom(start.image(), r);
+    } else {
+      target.fill(start.paint(), r);
+    }
+    List<ShapeIndex.Entry> found = index.query(r, flattenedBelow + start.depth());
+    ShapeDef[] shapes = new ShapeDef[found.size()];
+    for (int i = 0; i < shapes.length; i++) {
+      shapes[i] = found.get(i).shape;
+    }
+    target.drawAll(shapes, r);
+  }
+
+  /**
+   * What the undo stack shows, for exporting: the paint the canvas was last
+   * cleared to, the flattened base if the canvas hasn't been cleared since,
+   * and the strokes and images drawn over them on each {@link Layer},
+   * oldest first. Strokes that erase are on every layer.
+   */
+  record Visible(Paint background, Surface base, ShapeDef[][] layers) {
+  }
+
+  Visible visible() {
+    int clearDepth = lastClearDepth();
+    ShapeDef[] tail = tail(clearDepth);
+    Layer[] all = Layer.values();
+    ShapeDef[][] layers = new ShapeDef[all.length][];
+    for (Layer layer : all) {
+      ShapeDef[] mine = new ShapeDef[tail.length];
+      int kept = 0;
+      for (ShapeDef s : tail) {
+        if (!s.isErase() && !s.isClear() && !index.isHidden(s)
+            && (Layer.erases(s) || Layer.of(s) == layer)) {
+          mine[kept++] = s;
+        }
+      }
+      layers[layer.ordinal()] = Arrays.copyOf(mine, kept);
+    }
+    if (clearCount > 0) {
+      return new Visible(clearPaints[clearCount - 1], null, layers);
+    }
+    return new Visible(clearPaint, base != null ? base.snapshot(null) : null, layers);
+  }
+
+  /** The entries above {@code fromDepth}, oldest first. */
+  ShapeDef[] tail(int fromDepth) {
+    ShapeDef[] tail = new ShapeDef[undoStack.size() - fromDepth];
+    Iterator<ShapeDef> sdi = undoStack.iterator(); // top of stack first
+    for (int i = tail.length - 1; i >= 0; i--) {
+      tail[i] = sdi.next();
+    }
+    return tail;
+  }
+
+  String stats() {
+    return String.format("history: %d undo, %d redo, %d flattened, ~%d KB of %d KB",
+        undoStack.size(), redoStack.size(), flattenedCount,
+        heapBytes / 1024, budgetBytes / 1024);
+  }
+
+  void enforceBudget() {
+    if (heapBytes <= budgetBytes) {
+      return;
+    }
+    spillImages(undoStack.descendingIterator(), budgetBytes);
+    spillImages(redoStack.iterator(), budgetBytes);
+
+    while (heapBytes > budgetBytes && !redoStack.isEmpty()) {
+      ShapeDef s = redoStack.pollLast();
+      heapBytes -= s.heapBytes();
+      eraseTargets.remove(s);
+      s.release();
+    }
+
+    if (heapBytes > budgetBytes && undoStack.size() > MIN_UNDO) {
+      flatten();
+    }
+  }
+
+  private void spillImages(Iterator<ShapeDef> oldestFirst, long limit) {
+    while (heapBytes > limit && oldestFirst.hasNext()) {
+      StoredImage img = oldestFirst.next().img();
+      if (img != null && !img.isSpilled()) {
+        long before = img.heapBytes();
+        try {
+          img.spill();
+        } catch (IOException ioe) {
+          System.err.println("Couldn't spill history image: " + ioe.getMessage());
+          return;
+        }
+        heapBytes += img.heapBytes() - before;
+      }
+    }
+  }
+
+  // fold the oldest entries into the base surface until well under budget, so
+  // this doesn't have to happen again on the very next commit
+  private void flatten() {
+    long target = budgetBytes - budgetBytes / 4;
+    int count = 0;
+    long left = heapBytes;
+    for (Iterator<ShapeDef> oldest = undoStack.descendingIterator();
+        left > target && undoStack.size() - count > MIN_UNDO; count++) {
+      left -= oldest.next().heapBytes();
+    }
+    // an erase that stays in either stack has to be able to show or hide its
+    // strokes again, so those strokes stay too (and with them, maybe more
+    // erases)
+    for (int keepFrom = lowestErasedFrom(count); keepFrom <= flattenedBelow + count; ) {
+      count = keepFrom - flattenedBelow - 1;
+      keepFrom = lowestErasedFrom(count);
+    }
+    if (count == 0) {
+      return;
+    }
+
+    if (base == null) {
+      base = new LayeredSurface(width, height);
+      base.fill(clearPaint);
+    }
+    long baseBytes = base.heapBytes();
+    ArrayDeque<ShapeDef> folded = new ArrayDeque<>();
+    for (int i = 0; i < count; i++) {
+      ShapeDef s = undoStack.pollLast();
+      heapBytes -= s.heapBytes();
+      // what is erased by now is erased for good
+      if (eraseTargets.remove(s) == null && !index.isHidden(s)) {
+        folded.add(s);
+      } else {
+        s.release();
+      }
+    }
+    base.drawAll(folded.toArray(new ShapeDef[0]));
+    folded.forEach(ShapeDef::release);
+    // the base only grows where the flattened shapes reached
+    heapBytes += base.heapBytes() - baseBytes;
+    checkpoints.flattened(count);
+    index.removeThrough(flattenedBelow + count);
+    int kept = 0;
+    for (int i = 0; i < clearCount; i++) {
+      if (clearDepths[i] > count) {
+        clearPaints[kept] = clearPaints[i];
+        clearDepths[kept++] = clearDepths[i] - count;
+      }
+    }
+    Arrays.fill(clearPaints, kept, clearCount, null);
+    clearCount = kept;
+    kept = 0;
+    for (int i = 0; i < eraseCount; i++) {
+      if (eraseDepths[i] > flattenedBelow + count) {
+        eraseFloors[kept] = eraseFloors[i];
+        eraseDepths[kept++] = eraseDepths[i];
+      }
+    }
+    eraseCount = kept;
+    flattenedBelow += count;
+    flattenedCount += count;
+  }
+
+  // the lowest absolute depth that an erase entry would hide if it were in
+  // the undo stack, out of those in the redo stack and those in the undo stack
+  // above the bottom count entries
+  private int lowestErasedFrom(int count) {
+    int lowest = Integer.MAX_VALUE;
+    int depth = flattenedBelow;
+    for (Iterator<ShapeDef> it = undoStack.descendingIterator(); it.hasNext(); ) {
+      ShapeDef s = it.next();
+      if (++depth > flattenedBelow + count && s.isErase()) {
+        lowest = Math.min(lowest, lowestTarget(s));
+      }
+    }
+    for (ShapeDef s : redoStack) {
+      if (s.isErase()) {
+        lowest = Math.min(lowest, lowestTarget(s));
+      }
+    }
+    return lowest;
+  }
+
+  private int lowestTarget(ShapeDef erase) {
+    int lowest = Integer.MAX_VALUE;
+    for (ShapeDef t : eraseTargets.get(erase)) {
+      ShapeIndex.Entry e = index.of(t);
+      if (e != null) {
+        lowest = Math.min(lowest, e.depth);
+      }
+    }
+    return lowest;
+  }
+}
@@ -0,0 +1,145 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.function.IntConsumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Fits loaded pictures to the canvas. Pictures are shrunk by halves with
+ * bilinear filtering, which looks as good as area averaging at a fraction of
+ * the cost, into the same kind of raster the canvas tiles are, so that
+ * drawing them during replays is a plain copy.
+ */
+final class ImageScaler {
+
+  private ImageScaler() {
+  }
+
+  /**
+   * Reads a picture file, shrunk to fit within the given size. Pictures many
+   * times bigger than that are decoded at a fraction of their size to start
+   * with. {@code progress} is told the percentage done as it goes.
+   */
+  static BufferedImage read(Path file, int maxWidth, int maxHeight, IntConsumer progress)
+      throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+      if (in == null) {
+        throw new IOException("Can't read " + file);
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IOException("Not a picture: " + file);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        ImageReadParam param = reader.getDefaultReadParam();
+        // keep at least twice the pixels needed, for the final shrink to filter
+        int step = (int) (shrinkRatio(width, height, maxWidth, maxHeight) / 2);
+        if (step > 1) {
+          param.setSourceSubsampling(step, step, 0, 0);
+        }
+        reader.addIIOReadProgressListener(new ProgressListener(progress));
+        BufferedImage image = reader.read(0, param);
+        progress.accept(90);
+        BufferedImage fitted = fitWithin(image, maxWidth, maxHeight);
+        progress.accept(100);
+        return fitted;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  // how many times too big the picture is, or less than 1 if it fits
+  private static double shrinkRatio(int width, int height, int maxWidth, int maxHeight) {
+    return Math.max((double) width / maxWidth, (double) height / maxHeight);
+  }
+
+  /**
+   * Returns the image shrunk, keeping its aspect ratio, so it fits within
+   * the given size; or the image itself if it already does and is already
+   * the right kind of raster.
+   */
+  static BufferedImage fitWithin(BufferedImage loadedImage, int maxWidth, int maxHeight) {
+    int width = loadedImage.getWidth();
+    int height = loadedImage.getHeight();
+    double ratio = shrinkRatio(width, height, maxWidth, maxHeight);
+    if (ratio <= 1 && loadedImage.getType() == BufferedImage.TYPE_INT_ARGB) {
+      return loadedImage;
+    }
+    // keep aspect ratio
+    int targetWidth = ratio <= 1 ? width : Math.max(1, (int) (width / ratio));
+    int targetHeight = ratio <= 1 ? height : Math.max(1, (int) (height / ratio));
+    BufferedImage current = loadedImage;
+    do {
+      // bilinear filtering only sees neighbouring pixels, so never more
+      // than halve at a time
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = next.createGraphics();
+      g.setComposite(AlphaComposite.Src);
+      g.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(current, 0, 0, width, height, null);
+      g.dispose();
+      current = next;
+    } while (width != targetWidth || height != targetHeight);
+    return current;
+  }
+
+  // passes decoding progress on as the first 90 percent
+  private record ProgressListener(IntConsumer progress) implements IIOReadProgressListener {
+
+    @Override
+    public void imageProgress(ImageReader source, float percentageDone) {
+      progress.accept((int) (percentageDone * 0.9F));
+    }
+
+    @Override
+    public void sequenceStarted(ImageReader source, int minIndex) {
+    }
+
+    @Override
+    public void sequenceComplete(ImageReader source) {
+    }
+
+    @Override
+    public void imageStarted(ImageReader source, int imageIndex) {
+    }
+
+    @Override
+    public void imageComplete(ImageReader source) {
+    }
+
+    @Override
+    public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+    }
+
+    @Override
+    public void thumbnailProgress(ImageReader source, float percentageDone) {
+    }
+
+    @Override
+    public void thumbnailComplete(ImageReader source) {
+    }
+
+    @Override
+    public void readAborted(ImageReader source) {
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * A surface that is one image, for images the engine doesn't make itself,
+ * such as the accelerated ones a window supplies.
+ */
+public final class ImageSurface extends Surface {
+
+  private final Image image;
+  private Rectangle dirty;
+
+  public ImageSurface(Image image) {
+    super(image.getWidth(null), image.getHeight(null));
+    this.image = image;
+  }
+
+  @Override
+  public void paintTo(Graphics2D g, Rectangle area) {
+    Rectangle r = area.intersection(bounds());
+    if (r.isEmpty()) {
+      return;
+    }
+    Composite composite = g.getComposite();
+    g.setComposite(AlphaComposite.Src);
+    int x2 = r.x + r.width, y2 = r.y + r.height;
+    g.drawImage(image, r.x, r.y, x2, y2, r.x, r.y, x2, y2, null);
+    g.setComposite(composite);
+  }
+
+  @Override
+  void paintOver(Graphics2D g, Rectangle area) {
+    Rectangle r = area.intersection(bounds());
+    if (r.isEmpty()) {
+      return;
+    }
+    Composite composite = g.getComposite();
+    g.setComposite(AlphaComposite.SrcOver);
+    int x2 = r.x + r.width, y2 = r.y + r.height;
+    g.drawImage(image, r.x, r.y, x2, y2, r.x, r.y, x2, y2, null);
+    g.setComposite(composite);
+  }
+
+  @Override
+  void draw(Rectangle area, Consumer<Graphics2D> painter) {
+    Graphics2D g = (Graphics2D) image.getGraphics();
+    g.setRenderingHint(
+        RenderingHints.KEY_ANTIALIASING,
+        RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setComposite(AlphaComposite.Src);
+    if (area != null) {
+      g.clip(area);
+    }
+    painter.accept(g);
+    g.dispose();
+    Rectangle changed = area != null ? area.intersection(bounds()) : bounds();
+    dirty = dirty == null ? changed : dirty.union(changed);
+  }
+
+  @Override
+  void fill(Paint paint) {
+    draw(null, g -> {
+      g.setPaint(paint);
+      g.fillRect(0, 0, width, height);
+    });
+  }
+
+  @Override
+  void copyFrom(Surface src) {
+    copyFrom(src, bounds());
+  }
+
+  @Override
+  void copyFrom(Surface src, Rectangle area) {
+    draw(area, g -> src.paintTo(g, area));
+  }
+
+  @Override
+  Surface snapshot(Surface reuse) {
+    BufferedImage copy;
+    if (reuse instanceof ImageSurface is && is.image instanceof BufferedImage bi
+        && bi.getWidth() == width && bi.getHeight() == height) {
+      copy = bi;
+    } else {
+      copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    Graphics2D g = copy.createGraphics();
+    paintTo(g, bounds());
+    g.dispose();
+    return new ImageSurface(copy);
+  }
+
+  @Override
+  Rectangle takeDirty() {
+    Rectangle r = dirty;
+    dirty = null;
+    return r;
+  }
+
+  @Override
+  long heapBytes() {
+    return 4L * width * height;
+  }
+}
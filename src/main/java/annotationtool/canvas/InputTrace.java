@@ -0,0 +1,256 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary record of what was done to the canvas in a session: the
+ * mouse presses, drags and releases, and the actions the controller and
+ * keys trigger (choice of pen, paint and eraser, undo, redo, clears, loaded
+ * pictures and page changes), each with the time since the one before.
+ * <p>
+ * The file is a header {@code [magic][version][width][height][clear paint]}
+ * and then records of {@code [type][microseconds since the last record]
+ * [payload]}, with the times and coordinates as variable-length integers,
+ * so that a drag sample usually takes four or five bytes.
+ */
+final class InputTrace {
+
+  private static final int MAGIC = 0x414e4e54; // "ANNT"
+  private static final int VERSION = 1;
+
+  static final byte PRESS = 1;
+  static final byte DRAG = 2;
+  static final byte RELEASE = 3;
+  static final byte PAINT = 4;
+  static final byte STROKE = 5;
+  static final byte ERASER = 6;
+  static final byte UNDO = 7;
+  static final byte REDO = 8;
+  static final byte CLEAR = 9;
+  static final byte CLEAR_HISTORY = 10;
+  static final byte LOAD = 11;
+  static final byte PAGE = 12;
+
+  /**
+   * One record: when it happened in nanoseconds from the start of the
+   * trace, the point for mouse records (the size for a loaded picture, the
+   * page for a page change), and the paint, stroke or picture path chosen.
+   */
+  record Event(byte type, long at, int x, int y, Object arg) {
+  }
+
+  /** The canvas a trace was made on, and what was done to it. */
+  record Trace(int width, int height, Color clearPaint, List<Event> events) {
+  }
+
+  private InputTrace() {
+  }
+
+  /** Appends records to a new trace file, timed from when it was created. */
+  static final class Writer implements Closeable {
+
+    private final DataOutputStream out;
+    private long last = System.nanoTime();
+
+    Writer(Path file, int width, int height, Color clearPaint) throws IOException {
+      if (file.getParent() != null) {
+        Files.createDirectories(file.getParent());
+      }
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeInt(clearPaint.getRGB());
+    }
+
+    void mouse(byte type, int x, int y) throws IOException {
+      start(type);
+      writeVarInt(zigZag(x));
+      writeVarInt(zigZag(y));
+    }
+
+    void action(byte type) throws IOException {
+      start(type);
+    }
+
+    void paint(byte type, Paint paint) throws IOException {
+      if (!(paint instanceof Color c)) {
+        throw new IOException("Can't trace paint " + paint);
+      }
+      start(type);
+      out.writeInt(c.getRGB());
+    }
+
+    void stroke(Stroke stroke) throws IOException {
+      if (!(stroke instanceof BasicStroke bs)) {
+        throw new IOException("Can't trace stroke " + stroke);
+      }
+      start(STROKE);
+      float[] dash = bs.getDashArray();
+      out.writeFloat(bs.getLineWidth());
+      out.writeByte(bs.getEndCap());
+      out.writeByte(bs.getLineJoin());
+      out.writeFloat(bs.getMiterLimit());
+      out.writeFloat(bs.getDashPhase());
+      writeVarInt(dash == null ? 0 : dash.length + 1);
+      if (dash != null) {
+        for (float d : dash) {
+          out.writeFloat(d);
+        }
+      }
+    }
+
+    void load(Path from, int width, int height) throws IOException {
+      start(LOAD);
+      out.writeUTF(from == null ? "" : from.toString());
+      writeVarInt(width);
+      writeVarInt(height);
+    }
+
+    void page(int index) throws IOException {
+      start(PAGE);
+      writeVarInt(index);
+    }
+
+    private void start(byte type) throws IOException {
+      long now = System.nanoTime();
+      out.writeByte(type);
+      writeVarLong((now - last) / 1000);
+      last += (now - last) / 1000 * 1000; // keep the remainder for the next one
+    }
+
+    private void writeVarInt(int value) throws IOException {
+      writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.writeByte((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.writeByte((int) value);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private static int zigZag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int unZigZag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Reads a whole trace. One cut short, as by a crash, ends where it was cut. */
+  static Trace read(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        throw new IOException(file + " is not an input trace");
+      }
+      int width = in.readInt();
+      int height = in.readInt();
+      Color clearPaint = new Color(in.readInt(), true);
+      List<Event> events = new ArrayList<>();
+      long at = 0;
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          break;
+        }
+        try {
+          at += readVarLong(in) * 1000;
+          events.add(readEvent(in, (byte) type, at));
+        } catch (EOFException cut) {
+          break;
+        }
+      }
+      return new Trace(width, height, clearPaint, events);
+    }
+  }
+
+  private static Event readEvent(DataInputStream in, byte type, long at) throws IOException {
+    return switch (type) {
+      case PRESS, DRAG, RELEASE -> new Event(type, at,
+          unZigZag(readVarInt(in)), unZigZag(readVarInt(in)), null);
+      case PAINT, CLEAR -> new Event(type, at, 0, 0, new Color(in.readInt(), true));
+      case STROKE -> {
+        float width = in.readFloat();
+        int cap = in.readByte();
+        int join = in.readByte();
+        float miter = in.readFloat();
+        float phase = in.readFloat();
+        int dashCount = readVarInt(in) - 1;
+        float[] dash = null;
+        if (dashCount >= 0) {
+          dash = new float[dashCount];
+          for (int i = 0; i < dashCount; i++) {
+            dash[i] = in.readFloat();
+          }
+        }
+        yield new Event(type, at, 0, 0, new BasicStroke(width, cap, join, miter, dash, phase));
+      }
+      case ERASER, UNDO, REDO, CLEAR_HISTORY -> new Event(type, at, 0, 0, null);
+      case LOAD -> {
+        String from = in.readUTF();
+        yield new Event(type, at, readVarInt(in), readVarInt(in), from);
+      }
+      case PAGE -> new Event(type, at, readVarInt(in), 0, null);
+      default -> throw new IOException("Unknown trace record " + type);
+    };
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    return (int) readVarLong(in);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Corrupt number in trace");
+  }
+
+  /** The name used for a record type in reports. */
+  static String name(byte type) {
+    return switch (type) {
+      case PRESS -> "press";
+      case DRAG -> "drag";
+      case RELEASE -> "release";
+      case PAINT -> "paint";
+      case STROKE -> "stroke";
+      case ERASER -> "eraser";
+      case UNDO -> "undo";
+      case REDO -> "redo";
+      case CLEAR -> "clear";
+      case CLEAR_HISTORY -> "clear history";
+      case LOAD -> "load";
+      case PAGE -> "page";
+      default -> "type " + type;
+    };
+  }
+}
@@ -0,0 +1,729 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+
+/**
+ * An append-only, memory-mapped record of everything done to the history, so
+ * that a session survives the program being closed or killed.
+ * <p>
+ * Each record is {@code [length][type][payload][crc]}, and the length is
+ * written last: a record cut short by a crash reads as length zero, or fails
+ * its checksum, and reading stops there. Since the file is mapped, data is in
+ * the OS page cache as soon as it is put and is not lost when the process
+ * dies. Every so often a PNG snapshot of the drawing is written next to the
+ * journal, so that reloading only has to draw the shapes added after it.
+ * <p>
+ * Records are put into the file by a writer thread of the journal's own, in
+ * the order they were made, so the caller never waits for a picture or a
+ * snapshot to be encoded. The writer also rewrites the file without the
+ * records a replay would skip: everything before a history clear, and undos
+ * that were redone straight after. That happens when the history is
+ * cleared, and when a snapshot finds more than half the file is such records.
+ * If writing fails, the next call made to the journal throws. What was
+ * handed to the writer is only sure to be in the file once the journal is
+ * {@link #close closed}.
+ */
+final class Journal implements Closeable {
+
+  interface Replay {
+    void commit(ShapeDef s);
+
+    void undo();
+
+    void redo();
+  }
+
+  private static final int MAGIC = 0x414e4e4a; // "ANNJ"
+  private static final int SNAP_MAGIC = 0x414e4e53; // "ANNS"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 16;
+  private static final int MIN_MAP_BYTES = 4 * 1024 * 1024;
+
+  private static final byte STROKE_DEF = 1;
+  private static final byte PAINT_DEF = 2;
+  private static final byte SHAPE = 3;
+  private static final byte IMAGE = 4;
+  private static final byte UNDO = 5;
+  private static final byte REDO = 6;
+  private static final byte CLEAR_HISTORY = 7;
+  private static final byte CLEAR = 8;
+  private static final byte ERASE = 9;
+
+  private final Path file;
+  private final Path snapFile;
+  private FileChannel channel;
+  private MappedByteBuffer map;
+  private int end; // where the next record goes
+  private int lastClear; // offset of the record after the last CLEAR_HISTORY
+
+  // strokes and paints as numbered in this file
+  private final Dictionary<Stroke> strokes = new Dictionary<>();
+  private final Dictionary<Paint> paints = new Dictionary<>();
+
+  private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+  private final CRC32 crc = new CRC32();
+
+  private final int snapshotEvery = Integer.getInteger("annotate.journal.snapshotevery", 200);
+  private int commitsSinceSnapshot;
+  // everything in the file from here on is written by this thread, in order
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(
+      Thread.ofVirtual().name("journal-writer").factory());
+  private final AtomicBoolean snapshotBusy = new AtomicBoolean();
+  private volatile IOException failure; // why the writer stopped, if it did
+  private BufferedImage recoveredSnapshot;
+  private int recoveredSnapshotDepth;
+
+  private Journal(Path file, FileChannel channel) {
+    this.file = file;
+    this.snapFile = file.resolveSibling(file.getFileName() + ".snap");
+    this.channel = channel;
+  }
+
+  /**
+   * The journal file to use, from annotate.journal ("none" turns journalling
+   * off), or null if there should be none.
+   */
+  static Path configuredPath(boolean defaultOn) {
+    String name = System.getProperty("annotate.journal");
+    if ("none".equals(name) || (name == null && !defaultOn)) {
+      return null;
+    }
+    return name != null ? Paths.get(name)
+        : Paths.get(System.getProperty("user.home"), ".annotate", "journal.bin");
+  }
+
+  /**
+   * The journal for page {@code index} (counting from 0) of a drawing whose
+   * first page is journalled in {@code first}: that file itself, or one
+   * next to it with {@code .page2}, {@code .page3}... added to the name.
+   */
+  static Path pagePath(Path first, int index) {
+    return index == 0 ? first : first.resolveSibling(first.getFileName() + ".page" + (index + 1));
+  }
+
+  /** How many pages there are journals for, counting the first whether or not it exists. */
+  static int pageCount(Path first) {
+    int count = 1;
+    while (Files.exists(pagePath(first, count))) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Opens or creates the journal for a canvas of the given size. A journal
+   * for a different size can't be replayed and is moved aside.
+   */
+  static Journal open(Path file, int width, int height) throws IOException {
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    if (Files.exists(file) && !matches(file, width, height)) {
+      System.err.println("Journal " + file + " is for a different canvas size, moving it aside");
+      Files.move(file, file.resolveSibling(file.getFileName() + ".old"),
+          StandardCopyOption.REPLACE_EXISTING);
+      Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".snap"));
+    }
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    Journal j = new Journal(file, channel);
+    j.map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        Math.max(MIN_MAP_BYTES, channel.size()));
+    if (j.map.getInt(0) != MAGIC) {
+      j.map.putInt(4, VERSION).putInt(8, width).putInt(12, height);
+      j.map.putInt(0, MAGIC);
+    }
+    j.scan();
+    return j;
+  }
+
+  /** The {width, height} of the canvas a journal was made for. */
+  static int[] canvasSize(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(file + " is not a journal");
+      }
+      return new int[] {in.readInt(), in.readInt()};
+    }
+  }
+
+  private static boolean matches(Path file, int width, int height) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      int magic = in.readInt();
+      return magic == 0 // never written
+          || (magic == MAGIC && in.readInt() == VERSION
+          && in.readInt() == width && in.readInt() == height);
+    } catch (IOException eof) {
+      return true; // too short to hold anything
+    }
+  }
+
+  // find the end of the valid records, and the last history clear
+  private void scan() {
+    int pos = HEADER_BYTES;
+    lastClear = pos;
+    while (true) {
+      int next = validRecordEnd(pos);
+      if (next < 0) {
+        break;
+      }
+      if (map.get(pos + 4) == CLEAR_HISTORY) {
+        lastClear = next;
+      }
+      pos = next;
+    }
+    end = pos;
+    // blank out whatever a crash left behind so it can't be misread later
+    for (int i = end; i < Math.min(end + 8, map.capacity()); i++) {
+      map.put(i, (byte) 0);
+    }
+  }
+
+  // the offset after the record at pos, or -1 if there isn't a whole one
+  private int validRecordEnd(int pos) {
+    if (pos + 4 > map.capacity()) {
+      return -1;
+    }
+    int length = map.getInt(pos);
+    if (length < 5 || pos + 4 + length > map.capacity()) {
+      return -1;
+    }
+    crc.reset();
+    crc.update(map.slice(pos + 4, length - 4));
+    if ((int) crc.getValue() != map.getInt(pos + length)) {
+      return -1;
+    }
+    return pos + 4 + length;
+  }
+
+  /**
+   * Reads back the strokes and paints the file defines, so that a journal
+   * that was closed can be written to again when it is opened, without
+   * being replayed.
+   */
+  void readDefinitions() throws IOException {
+    for (int pos = HEADER_BYTES; pos < end; pos = validRecordEnd(pos)) {
+      byte type = map.get(pos + 4);
+      if (type == STROKE_DEF || type == PAINT_DEF) {
+        readDefinition(type, payload(pos));
+      }
+    }
+  }
+
+  /**
+   * Feeds everything since the last history clear to {@code replay}, and
+   * reads the latest snapshot if it still describes the bottom of the
+   * resulting undo stack.
+   */
+  void replay(Replay replay) throws IOException {
+    // strokes and paints may have been defined before the clear
+    for (int pos = HEADER_BYTES; pos < lastClear; pos = validRecordEnd(pos)) {
+      byte type = map.get(pos + 4);
+      if (type == STROKE_DEF || type == PAINT_DEF) {
+        readDefinition(type, payload(pos));
+      }
+    }
+
+    SnapshotHeader snap = readSnapshotHeader();
+    boolean snapValid = snap != null && snap.offset >= lastClear && snap.offset <= end;
+    int depth = 0;
+    for (int pos = lastClear; pos < end; pos = validRecordEnd(pos)) {
+      if (snap != null && pos == snap.offset && depth != snap.depth) {
+        snapValid = false;
+      }
+      byte type = map.get(pos + 4);
+      ByteBuffer payload = payload(pos);
+      switch (type) {
+        case STROKE_DEF, PAINT_DEF -> readDefinition(type, payload);
+        case SHAPE, IMAGE, CLEAR, ERASE -> {
+          replay.commit(type == SHAPE ? readShape(payload)
+              : type == IMAGE ? readImage(payload)
+              : type == ERASE ? readErase(payload)
+              : ShapeDef.clear(new Color(payload.getInt(), true)));
+          depth++;
+          // a commit at or below the snapshot's depth changes what it shows
+          if (snap != null && pos >= snap.offset && depth <= snap.depth) {
+            snapValid = false;
+          }
+        }
+        case UNDO -> {
+          replay.undo();
+          depth = Math.max(0, depth - 1);
+        }
+        case REDO -> {
+          replay.redo();
+          depth++;
+        }
+        default -> throw new IOException("Unknown journal record " + type + " at " + pos);
+      }
+    }
+    if (snapValid && depth >= snap.depth) {
+      recoveredSnapshot = readSnapshotImage();
+      recoveredSnapshotDepth = snap.depth;
+    }
+  }
+
+  private ByteBuffer payload(int pos) {
+    return map.slice(pos + 5, map.getInt(pos) - 5);
+  }
+
+  /** The snapshot found by {@link #replay}, or null if there was no usable one. */
+  BufferedImage recoveredSnapshot() {
+    return recoveredSnapshot;
+  }
+
+  int recoveredSnapshotDepth() {
+    return recoveredSnapshotDepth;
+  }
+
+  void commit(ShapeDef s) throws IOException {
+    checkWriter();
+    if (s.img() != null) {
+      // a fresh entry's image is a raster nothing draws on any more
+      BufferedImage image = s.img().get();
+      write(() -> {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        append(IMAGE, ByteBuffer.wrap(png.toByteArray()));
+      });
+    } else if (s.isClear()) {
+      if (!(s.paint() instanceof Color c)) {
+        throw new IOException("Can't journal paint " + s.paint());
+      }
+      queue(CLEAR, ByteBuffer.allocate(4).putInt(c.getRGB()).flip());
+    } else if (s.isErase()) {
+      ByteBuffer buf = ByteBuffer.allocate(4 + 4 * s.erased().length);
+      buf.putInt(s.erased().length);
+      for (int depth : s.erased()) {
+        buf.putInt(depth);
+      }
+      queue(ERASE, buf.flip());
+    } else {
+      int strokeIndex = define(s.stroke());
+      int paintIndex = define(s.paint());
+      writeShape(strokeIndex, paintIndex, s.shape());
+      queue(SHAPE, record);
+    }
+    commitsSinceSnapshot++;
+  }
+
+  void undo() throws IOException {
+    checkWriter();
+    queue(UNDO, ByteBuffer.allocate(0));
+  }
+
+  void redo() throws IOException {
+    checkWriter();
+    queue(REDO, ByteBuffer.allocate(0));
+  }
+
+  /** Records a history clear, after which nothing before it is needed. */
+  void clearHistory() throws IOException {
+    checkWriter();
+    write(() -> {
+      append(CLEAR_HISTORY, ByteBuffer.allocate(0));
+      lastClear = end;
+      compact();
+    });
+    commitsSinceSnapshot = 0;
+  }
+
+  /**
+   * Writes a snapshot of {@code rendered}, which shows an undo stack of
+   * {@code depth} entries, if enough commits have happened since the last
+   * one. The surface is snapshotted here (for a tiled one that only shares
+   * its tiles) and flattened and encoded in the background; a layered one
+   * is saved with its layers stacked one above the other.
+   */
+  void maybeSnapshot(int depth, Surface rendered) {
+    if (snapshotEvery <= 0 || commitsSinceSnapshot < snapshotEvery
+        || !snapshotBusy.compareAndSet(false, true)) {
+      return;
+    }
+    commitsSinceSnapshot = 0;
+    Surface copy = rendered.snapshot(null);
+    write(() -> {
+      try {
+        if (2 * liveBytes(liveRecords()) < end) {
+          compact();
+        }
+        writeSnapshot(end, depth, copy instanceof LayeredSurface ls
+            ? ls.toStackedImage() : copy.toImage());
+      } catch (IOException ioe) {
+        // the records are all still there, only reloading is slower
+        System.err.println("Journal snapshot failed: " + ioe.getMessage());
+      } finally {
+        snapshotBusy.set(false);
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    finishWriting();
+    map.force();
+    channel.close();
+  }
+
+  private void finishWriting() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private interface Work {
+    void run() throws IOException;
+  }
+
+  // throws if the writer has given up, so the caller can stop journalling
+  private void checkWriter() throws IOException {
+    IOException ioe = failure;
+    if (ioe != null) {
+      throw new IOException(ioe.getMessage(), ioe);
+    }
+  }
+
+  private void write(Work work) {
+    if (writer.isShutdown()) {
+      failure = new IOException("Journal " + file + " is closed");
+      return;
+    }
+    writer.execute(() -> {
+      if (failure != null) {
+        return;
+      }
+      try {
+        work.run();
+      } catch (IOException ioe) {
+        failure = ioe;
+      } catch (RuntimeException ex) {
+        failure = new IOException(ex.toString(), ex);
+      }
+    });
+  }
+
+  // appends a copy of the payload, so the caller can reuse its buffer
+  private void queue(byte type, ByteBuffer payload) {
+    ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+    copy.put(payload.duplicate()).flip();
+    write(() -> append(type, copy));
+  }
+
+  // on the writer thread
+  private void append(byte type, ByteBuffer payload) throws IOException {
+    int length = 1 + payload.remaining() + 4;
+    if ((long) end + 4 + length + 4 > Integer.MAX_VALUE) {
+      compact();
+    }
+    ensureCapacity((long) end + 4 + length + 4);
+    int start = end + 4;
+    map.put(start, type);
+    map.put(start + 1, payload, payload.position(), payload.remaining());
+    crc.reset();
+    crc.update(map.slice(start, length - 4));
+    map.putInt(start + length - 4, (int) crc.getValue());
+    // the length goes in last, which is what makes the record exist
+    map.putInt(end, length);
+    end += 4 + length;
+  }
+
+  private void ensureCapacity(long needed) throws IOException {
+    if (needed <= map.capacity()) {
+      return;
+    }
+    long size = map.capacity();
+    while (size < needed) {
+      size *= 2;
+    }
+    if (size > Integer.MAX_VALUE) {
+      size = Integer.MAX_VALUE;
+      if (size < needed) {
+        throw new IOException("Journal " + file + " is full");
+      }
+    }
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  // the offsets of the records a replay still needs, in order: every
+  // definition, and from the last history clear on everything but an undo
+  // that is redone straight after (which leaves the history as it was)
+  private int[] liveRecords() {
+    int[] kept = new int[64];
+    int n = 0;
+    for (int pos = HEADER_BYTES; pos < end; pos += 4 + map.getInt(pos)) {
+      byte type = map.get(pos + 4);
+      // definitions are numbered in the order they were made, so they all stay
+      boolean definition = type == STROKE_DEF || type == PAINT_DEF;
+      if (!definition && pos < lastClear) {
+        continue;
+      }
+      if (type == REDO && n > 0 && map.get(kept[n - 1] + 4) == UNDO) {
+        n--;
+        continue;
+      }
+      if (n == kept.length) {
+        kept = Arrays.copyOf(kept, 2 * n);
+      }
+      kept[n++] = pos;
+    }
+    return Arrays.copyOf(kept, n);
+  }
+
+  private long liveBytes(int[] records) {
+    long bytes = HEADER_BYTES;
+    for (int pos : records) {
+      bytes += 4 + map.getInt(pos);
+    }
+    return bytes;
+  }
+
+  // rewrites the file with only the records a replay needs; the old file
+  // stays until the new one is complete, so a crash leaves one or the other
+  private void compact() throws IOException {
+    int[] records = liveRecords();
+    long bytes = liveBytes(records);
+    if (bytes == end) {
+      return;
+    }
+    Path part = file.resolveSibling(file.getFileName() + ".compact");
+    try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(out, map.slice(0, HEADER_BYTES));
+      for (int pos : records) {
+        writeFully(out, map.slice(pos, 4 + map.getInt(pos)));
+      }
+      out.force(false);
+    }
+    // its offsets are about to mean something else
+    Files.deleteIfExists(snapFile);
+    Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel.close();
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    // mapping past the end of the file fills it out with zeros
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        Math.min(Integer.MAX_VALUE, Math.max(MIN_MAP_BYTES, 2 * bytes)));
+    end = (int) bytes;
+    lastClear = HEADER_BYTES;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+  }
+
+  private int define(Stroke stroke) throws IOException {
+    int before = strokes.size();
+    int index = strokes.indexOf(stroke);
+    if (index == before) {
+      if (!(stroke instanceof BasicStroke bs)) {
+        throw new IOException("Can't journal stroke " + stroke);
+      }
+      float[] dash = bs.getDashArray();
+      ByteBuffer buf = ByteBuffer.allocate(28 + (dash == null ? 0 : 4 * dash.length));
+      buf.putInt(index).putFloat(bs.getLineWidth()).putInt(bs.getEndCap())
+          .putInt(bs.getLineJoin()).putFloat(bs.getMiterLimit())
+          .putFloat(bs.getDashPhase()).putInt(dash == null ? -1 : dash.length);
+      if (dash != null) {
+        for (float d : dash) {
+          buf.putFloat(d);
+        }
+      }
+      queue(STROKE_DEF, buf.flip());
+    }
+    return index;
+  }
+
+  private int define(Paint paint) throws IOException {
+    int before = paints.size();
+    int index = paints.indexOf(paint);
+    if (index == before) {
+      if (!(paint instanceof Color c)) {
+        throw new IOException("Can't journal paint " + paint);
+      }
+      queue(PAINT_DEF, ByteBuffer.allocate(8).putInt(index).putInt(c.getRGB()).flip());
+    }
+    return index;
+  }
+
+  private void readDefinition(byte type, ByteBuffer buf) throws IOException {
+    int index = buf.getInt();
+    int expected = type == STROKE_DEF ? strokes.size() : paints.size();
+    if (index != expected) {
+      throw new IOException("Journal definitions out of order");
+    }
+    if (type == STROKE_DEF) {
+      float width = buf.getFloat();
+      int cap = buf.getInt();
+      int join = buf.getInt();
+      float miter = buf.getFloat();
+      float phase = buf.getFloat();
+      int dashCount = buf.getInt();
+      float[] dash = null;
+      if (dashCount >= 0) {
+        dash = new float[dashCount];
+        buf.asFloatBuffer().get(dash);
+      }
+      strokes.indexOf(new BasicStroke(width, cap, join, miter, dash, phase));
+    } else {
+      paints.indexOf(new Color(buf.getInt(), true));
+    }
+  }
+
+  // fills the reusable record buffer, growing it if need be
+  private void writeShape(int strokeIndex, int paintIndex, Shape shape) {
+    float[] coords;
+    byte[] types;
+    if (shape instanceof PackedPath pp) {
+      coords = pp.coords();
+      types = pp.types();
+    } else {
+      // anything else is flattened to its segments
+      float[] seg = new float[6];
+      float[] c = new float[16];
+      byte[] t = new byte[8];
+      int nc = 0, nt = 0;
+      for (PathIterator pi = shape.getPathIterator(null); !pi.isDone(); pi.next()) {
+        int type = pi.currentSegment(seg);
+        int n = type == PathIterator.SEG_CLOSE ? 0
+            : type == PathIterator.SEG_QUADTO ? 4 : type == PathIterator.SEG_CUBICTO ? 6 : 2;
+        if (nc + n > c.length) {
+          c = Arrays.copyOf(c, 2 * c.length + n);
+        }
+        if (nt == t.length) {
+          t = Arrays.copyOf(t, 2 * t.length);
+        }
+        System.arraycopy(seg, 0, c, nc, n);
+        nc += n;
+        t[nt++] = (byte) type;
+      }
+      coords = Arrays.copyOf(c, nc);
+      types = Arrays.copyOf(t, nt);
+    }
+    int needed = 16 + 4 * coords.length + (types == null ? 0 : types.length);
+    if (record.capacity() < needed) {
+      record = ByteBuffer.allocate(Math.max(needed, 2 * record.capacity()));
+    }
+    record.clear();
+    record.putInt(strokeIndex).putInt(paintIndex);
+    record.putInt(coords.length).putInt(types == null ? -1 : types.length);
+    record.asFloatBuffer().put(coords);
+    record.position(record.position() + 4 * coords.length);
+    if (types != null) {
+      record.put(types);
+    }
+    record.flip();
+  }
+
+  private ShapeDef readShape(ByteBuffer buf) throws IOException {
+    try {
+      Stroke stroke = strokes.get(buf.getInt());
+      Paint paint = paints.get(buf.getInt());
+      float[] coords = new float[buf.getInt()];
+      int typeCount = buf.getInt();
+      buf.asFloatBuffer().get(coords);
+      buf.position(buf.position() + 4 * coords.length);
+      byte[] types = null;
+      if (typeCount >= 0) {
+        types = new byte[typeCount];
+        buf.get(types);
+      }
+      return new ShapeDef(stroke, paint, new PackedPath(coords, types), null);
+    } catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+      throw new IOException("Corrupt shape in journal", ex);
+    }
+  }
+
+  private ShapeDef readImage(ByteBuffer buf) throws IOException {
+    byte[] png = new byte[buf.remaining()];
+    buf.get(png);
+    BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+    if (img == null) {
+      throw new IOException("Unreadable image in journal");
+    }
+    return new ShapeDef(null, null, null, new StoredImage(img));
+  }
+
+  private ShapeDef readErase(ByteBuffer buf) throws IOException {
+    try {
+      int[] depths = new int[buf.getInt()];
+      buf.asIntBuffer().get(depths);
+      return ShapeDef.erase(depths);
+    } catch (NegativeArraySizeException | BufferUnderflowException ex) {
+      throw new IOException("Corrupt erase in journal", ex);
+    }
+  }
+
+  private record SnapshotHeader(long offset, int depth) {
+  }
+
+  private void writeSnapshot(long offset, int depth, BufferedImage image) throws IOException {
+    Path part = snapFile.resolveSibling(snapFile.getFileName() + ".part");
+    try (OutputStream os = Files.newOutputStream(part);
+         DataOutputStream out = new DataOutputStream(os)) {
+      out.writeInt(SNAP_MAGIC);
+      out.writeLong(offset);
+      out.writeInt(depth);
+      ImageIO.write(image, "png", out);
+    }
+    Files.move(part, snapFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private SnapshotHeader readSnapshotHeader() {
+    if (!Files.exists(snapFile)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(snapFile))) {
+      if (in.readInt() != SNAP_MAGIC) {
+        return null;
+      }
+      return new SnapshotHeader(in.readLong(), in.readInt());
+    } catch (IOException ioe) {
+      return null;
+    }
+  }
+
+  private BufferedImage readSnapshotImage() {
+    try (InputStream in = Files.newInputStream(snapFile)) {
+      in.skipNBytes(16);
+      return ImageIO.read(in);
+    } catch (IOException ioe) {
+      System.err.println("Unreadable journal snapshot: " + ioe.getMessage());
+      return null;
+    }
+  }
+}
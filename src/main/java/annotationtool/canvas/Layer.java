@@ -0,0 +1,38 @@
+package annotationtool.canvas;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Transparency;
+
+/**
+ * The layers of a {@link LayeredSurface}, bottom first. Which one an entry
+ * goes on follows from what it is: pictures at the bottom, strokes in a
+ * paint that can be seen through (highlighters) over them, and opaque ink
+ * on top. Clears, and strokes that erase, go on all of them.
+ */
+enum Layer {
+  BACKGROUND, HIGHLIGHT, INK;
+
+  /** The layer a stroke or picture entry is drawn on, unless it erases. */
+  static Layer of(ShapeDef s) {
+    return s.img() != null ? BACKGROUND : of(s.paint());
+  }
+
+  /** The layer for strokes drawn with {@code paint}. */
+  static Layer of(Paint paint) {
+    return paint.getTransparency() == Transparency.OPAQUE ? INK : HIGHLIGHT;
+  }
+
+  /**
+   * Whether {@code s} is a stroke that erases: one in a paint with no colour
+   * at all leaves every layer transparent where it goes, not just its own.
+   */
+  static boolean erases(ShapeDef s) {
+    return s.stroke() != null && erases(s.paint());
+  }
+
+  /** Whether strokes in {@code paint} erase, see {@link #erases(ShapeDef)}. */
+  static boolean erases(Paint paint) {
+    return paint instanceof Color c && c.getAlpha() == 0;
+  }
+}
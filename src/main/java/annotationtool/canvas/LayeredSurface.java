@@ -0,0 +1,445 @@
+package annotationtool.canvas;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A surface kept as one {@link TiledSurface} per {@link Layer}: loaded
+ * pictures and the paint the canvas was cleared to at the bottom,
+ * highlighter strokes over them and opaque ink on top, so a highlighter
+ * never covers the writing it marks, whichever was drawn first. Each layer
+ * is drawn on with the Src composite like any other surface, so strokes
+ * within a layer look the same as they always did; clears clear every layer,
+ * and a stroke that erases ({@link Layer#erases}) erases every layer.
+ * <p>
+ * What is shown is the layers composited together. A surface that is shown
+ * keeps that in a target surface, which may be an accelerated image a window
+ * supplied, and brings it up to date only where the layers changed, the next
+ * time it is painted. Snapshots have no target and composite as they paint.
+ * <p>
+ * Undoing a stroke only redraws the layer it was on, through
+ * {@link #part}, so a loaded picture isn't drawn (or decompressed) again
+ * because of the ink over it, and ink isn't redrawn for a highlighter.
+ */
+final class LayeredSurface extends Surface {
+
+  private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+  // what a clear does to the layers above the background
+  private static final ShapeDef CLEAR = ShapeDef.clear(TRANSPARENT);
+  private static final Layer[] LAYERS = Layer.values();
+
+  private final TiledSurface[] layers;
+  private final Part[] parts = new Part[LAYERS.length];
+  private Surface target; // the layers composited, null to composite while painting
+  private Rectangle stale; // where the target is behind the layers, null for nowhere
+
+  /** A blank surface with no target. */
+  LayeredSurface(int width, int height) {
+    this(blankLayers(width, height));
+  }
+
+  /**
+   * A blank surface that keeps its composite in {@code target}, whose
+   * contents don't matter.
+   */
+  LayeredSurface(Surface target) {
+    this(blankLayers(target.width(), target.height()));
+    retarget(target);
+  }
+
+  private LayeredSurface(TiledSurface[] layers) {
+    super(layers[0].width(), layers[0].height());
+    this.layers = layers;
+    for (Layer layer : LAYERS) {
+      parts[layer.ordinal()] = new Part(layer);
+    }
+  }
+
+  private static TiledSurface[] blankLayers(int width, int height) {
+    TiledSurface[] layers = new TiledSurface[LAYERS.length];
+    for (int i = 0; i < layers.length; i++) {
+      layers[i] = new TiledSurface(width, height);
+    }
+    return layers;
+  }
+
+  /**
+   * Keeps the composite in {@code target} from now on, as when the old one
+   * lost its contents. The layers are untouched, so nothing is replayed.
+   */
+  void retarget(Surface target) {
+    this.target = target;
+    stale = bounds();
+  }
+
+  @Override
+  public void paintTo(Graphics2D g, Rectangle area) {
+    if (target == null) {
+      composite(g, area);
+    } else {
+      update();
+      target.paintTo(g, area);
+    }
+  }
+
+  @Override
+  void paintOver(Graphics2D g, Rectangle area) {
+    if (target == null) {
+      for (TiledSurface layer : layers) {
+        layer.paintOver(g, area);
+      }
+    } else {
+      update();
+      target.paintOver(g, area);
+    }
+  }
+
+  private void composite(Graphics2D g, Rectangle area) {
+    layers[0].paintTo(g, area);
+    for (int i = 1; i < layers.length; i++) {
+      layers[i].paintOver(g, area);
+    }
+  }
+
+  // brings the target up to date with the layers
+  private void update() {
+    if (stale == null) {
+      return;
+    }
+    Rectangle r = stale;
+    stale = null;
+    target.draw(r, g -> {
+      Rectangle part = g.getClipBounds();
+      composite(g, part != null ? part.intersection(r) : r);
+    });
+    target.takeDirty();
+  }
+
+  // notes that the layers changed in area (everywhere if null)
+  private void changed(Rectangle area) {
+    if (target == null) {
+      return;
+    }
+    Rectangle r = area == null ? bounds() : area.intersection(bounds());
+    if (!r.isEmpty()) {
+      stale = stale == null ? r : stale.union(r);
+    }
+  }
+
+  /**
+   * Draws the same on every layer, as an erasing stroke is; anything else
+   * is drawn on the {@link #part} for its layer.
+   */
+  @Override
+  void draw(Rectangle area, Consumer<Graphics2D> painter) {
+    for (TiledSurface layer : layers) {
+      layer.draw(area, painter);
+    }
+    changed(area);
+  }
+
+  @Override
+  void drawEntry(ShapeDef s, Rectangle area, boolean fresh) {
+    if (Layer.erases(s)) {
+      for (TiledSurface layer : layers) {
+        layer.drawEntry(s, area, fresh);
+      }
+    } else {
+      layers[Layer.of(s).ordinal()].drawEntry(s, area, fresh);
+    }
+    changed(area);
+  }
+
+  @Override
+  void drawAll(ShapeDef[] shapes, Rectangle area) {
+    for (Layer layer : LAYERS) {
+      drawLayer(layer, shapes, area);
+    }
+    changed(area);
+  }
+
+  // draws the entries that go on the layer, in order, with the clears and
+  // the strokes that erase
+  private void drawLayer(Layer layer, ShapeDef[] shapes, Rectangle area) {
+    ShapeDef[] mine = new ShapeDef[shapes.length];
+    int n = 0;
+    for (ShapeDef s : shapes) {
+      if (s.isClear()) {
+        mine[n++] = layer == Layer.BACKGROUND ? s : CLEAR;
+      } else if (!s.isErase() && (Layer.erases(s) || Layer.of(s) == layer)) {
+        mine[n++] = s;
+      }
+    }
+    if (n > 0) {
+      layers[layer.ordinal()].drawAll(Arrays.copyOf(mine, n), area);
+    }
+  }
+
+  @Override
+  void fill(Paint paint) {
+    for (Layer layer : LAYERS) {
+      layers[layer.ordinal()].fill(layer == Layer.BACKGROUND ? paint : TRANSPARENT);
+    }
+    changed(null);
+  }
+
+  @Override
+  void fill(Paint paint, Rectangle area) {
+    for (Layer layer : LAYERS) {
+      layers[layer.ordinal()].fill(layer == Layer.BACKGROUND ? paint : TRANSPARENT, area);
+    }
+    changed(area);
+  }
+
+  @Override
+  void copyFrom(Surface src) {
+    if (src instanceof LayeredSurface ls) {
+      for (int i = 0; i < layers.length; i++) {
+        layers[i].copyFrom(ls.layers[i]);
+      }
+      if (target != null && ls.target != null) {
+        // the composite is copied too, and is as up to date as the one it came from
+        target.copyFrom(ls.target);
+        stale = ls.stale != null ? new Rectangle(ls.stale) : null;
+        return;
+      }
+    } else {
+      // a picture without layers is all background
+      layers[0].copyFrom(src);
+      for (int i = 1; i < layers.length; i++) {
+        layers[i].fill(TRANSPARENT);
+      }
+    }
+    changed(null);
+  }
+
+  @Override
+  void copyFrom(Surface src, Rectangle area) {
+    if (src instanceof LayeredSurface ls) {
+      for (int i = 0; i < layers.length; i++) {
+        layers[i].copyFrom(ls.layers[i], area);
+      }
+      if (target != null && ls.target != null) {
+        target.copyFrom(ls.target, area);
+        if (ls.stale != null && ls.stale.intersects(area)) {
+          changed(ls.stale.intersection(area));
+        }
+        return;
+      }
+    } else {
+      layers[0].copyFrom(src, area);
+      for (int i = 1; i < layers.length; i++) {
+        layers[i].fill(TRANSPARENT, area);
+      }
+    }
+    changed(area);
+  }
+
+  @Override
+  Surface snapshot(Surface reuse) {
+    TiledSurface[] copies = new TiledSurface[layers.length];
+    for (int i = 0; i < layers.length; i++) {
+      copies[i] = (TiledSurface) layers[i].snapshot(null);
+    }
+    return new LayeredSurface(copies);
+  }
+
+  @Override
+  Rectangle takeDirty() {
+    Rectangle r = null;
+    for (TiledSurface layer : layers) {
+      Rectangle d = layer.takeDirty();
+      if (d != null) {
+        r = r == null ? d : r.union(d);
+      }
+    }
+    return r;
+  }
+
+  @Override
+  long heapBytes() {
+    long bytes = 0;
+    for (TiledSurface layer : layers) {
+      bytes += layer.heapBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  Surface part(Layer layer) {
+    return parts[layer.ordinal()];
+  }
+
+  /** {@code picture} with layers: itself if it has them, otherwise it as the background. */
+  static LayeredSurface of(Surface picture) {
+    if (picture instanceof LayeredSurface ls) {
+      return ls;
+    }
+    LayeredSurface s = new LayeredSurface(picture.width(), picture.height());
+    s.copyFrom(picture);
+    return s;
+  }
+
+  /**
+   * The layers as one image, each below the one it is drawn under, to be
+   * saved and read back by {@link #fromImage}.
+   */
+  BufferedImage toStackedImage() {
+    BufferedImage image = new BufferedImage(width, height * layers.length,
+        BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+    for (TiledSurface layer : layers) {
+      layer.paintTo(g, bounds());
+      g.translate(0, height);
+    }
+    g.dispose();
+    return image;
+  }
+
+  /**
+   * A surface from an image made by {@link #toStackedImage}, or from a plain
+   * picture of the canvas, which becomes the background.
+   */
+  static LayeredSurface fromImage(BufferedImage image, int width, int height) {
+    LayeredSurface s = new LayeredSurface(width, height);
+    if (image.getWidth() == width && image.getHeight() == height * LAYERS.length) {
+      for (int i = 0; i < LAYERS.length; i++) {
+        s.layers[i].copyFrom(new ImageSurface(image.getSubimage(0, i * height, width, height)));
+      }
+    } else {
+      s.layers[0].copyFrom(new ImageSurface(image));
+    }
+    s.takeDirty();
+    return s;
+  }
+
+  /** Writes the layers to a file, see {@link TiledSurface#write}. */
+  void write(Path file) throws IOException {
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (TiledSurface layer : layers) {
+        layer.write(out);
+      }
+    }
+  }
+
+  /** A surface as {@link #write} left it. */
+  static LayeredSurface read(Path file) throws IOException {
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buf = TiledSurface.map(in);
+      TiledSurface[] layers = new TiledSurface[LAYERS.length];
+      for (int i = 0; i < layers.length; i++) {
+        layers[i] = TiledSurface.read(buf, file);
+      }
+      return new LayeredSurface(layers);
+    }
+  }
+
+  // one layer on its own, drawn on through the surface so that its
+  // composite keeps up
+  private final class Part extends Surface {
+
+    private final Layer layer;
+    private final TiledSurface surface;
+
+    Part(Layer layer) {
+      super(LayeredSurface.this.width, LayeredSurface.this.height);
+      this.layer = layer;
+      this.surface = layers[layer.ordinal()];
+    }
+
+    // what a clear to paint leaves on this layer
+    private Paint cleared(Paint paint) {
+      return layer == Layer.BACKGROUND ? paint : TRANSPARENT;
+    }
+
+    @Override
+    public void paintTo(Graphics2D g, Rectangle area) {
+      surface.paintTo(g, area);
+    }
+
+    @Override
+    void paintOver(Graphics2D g, Rectangle area) {
+      surface.paintOver(g, area);
+    }
+
+    @Override
+    void draw(Rectangle area, Consumer<Graphics2D> painter) {
+      surface.draw(area, painter);
+      changed(area);
+    }
+
+    @Override
+    void drawEntry(ShapeDef s, Rectangle area, boolean fresh) {
+      if (Layer.erases(s) || Layer.of(s) == layer) {
+        surface.drawEntry(s, area, fresh);
+        changed(area);
+      }
+    }
+
+    @Override
+    void drawAll(ShapeDef[] shapes, Rectangle area) {
+      drawLayer(layer, shapes, area);
+      changed(area);
+    }
+
+    @Override
+    void fill(Paint paint) {
+      surface.fill(cleared(paint));
+      changed(null);
+    }
+
+    @Override
+    void fill(Paint paint, Rectangle area) {
+      surface.fill(cleared(paint), area);
+      changed(area);
+    }
+
+    @Override
+    void copyFrom(Surface src) {
+      copyFrom(src, bounds());
+    }
+
+    @Override
+    void copyFrom(Surface src, Rectangle area) {
+      if (src instanceof LayeredSurface ls) {
+        surface.copyFrom(ls.layers[layer.ordinal()], area);
+      } else if (layer == Layer.BACKGROUND) {
+        surface.copyFrom(src, area);
+      } else {
+        surface.fill(TRANSPARENT, area);
+      }
+      changed(area);
+    }
+
+    @Override
+    Surface snapshot(Surface reuse) {
+      return surface.snapshot(reuse);
+    }
+
+    @Override
+    Rectangle takeDirty() {
+      return LayeredSurface.this.takeDirty();
+    }
+
+    @Override
+    long heapBytes() {
+      return surface.heapBytes();
+    }
+
+    @Override
+    Surface part(Layer other) {
+      return LayeredSurface.this.part(other);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The stroke that is currently being dragged out. The layer starts as a copy
+ * of the main surface (the caller passes a null base if it already is one)
+ * and each new segment is rasterized onto it exactly once,
+ * so the cost of a drag event does not grow with the length of the stroke.
+ * <p>
+ * Segments are drawn with {@link AlphaComposite#Src}, the same as committed
+ * shapes, so where segments of a translucent highlighter overlap the colour is
+ * replaced rather than blended with itself. They go on the part of the layer
+ * for the {@link Layer} the stroke will be on once committed, so a highlighter
+ * shows under ink while it is being drawn too; a stroke that erases goes on
+ * all of them.
+ * <p>
+ * Samples that barely move from the last point are skipped, and the path
+ * handed to the history is simplified, see {@link StrokeSimplifier}.
+ */
+final class LiveStroke {
+
+  private final Surface layer;
+  private final Surface part; // the layer's Layer for the paint, all of it to erase
+  private final Stroke stroke;
+  private final Paint paint;
+  private final Line2D.Float segment = new Line2D.Float();
+  private final Consumer<Graphics2D> drawSegment = this::drawSegment;
+  private final int reach;
+  private final float minStep;
+  private Rectangle touched;
+
+  // interleaved x,y of the points drawn so far
+  private float[] pts = new float[64];
+  private int count;
+  private int samples;
+  // the latest sample, if it was too close to the last point to draw yet
+  private boolean pending;
+  private float pendingX, pendingY;
+
+  LiveStroke(Surface layer, Surface base, Stroke stroke, Paint paint, float x, float y) {
+    this.stroke = stroke;
+    this.paint = paint;
+    this.reach = ShapeDef.reach(stroke);
+    this.minStep = StrokeSimplifier.minStep(stroke);
+    this.layer = layer;
+    this.part = Layer.erases(paint) ? layer : layer.part(Layer.of(paint));
+    if (base != null) {
+      layer.copyFrom(base);
+    }
+
+    addPoint(x, y);
+    samples = 1;
+  }
+
+  private void addPoint(float x, float y) {
+    if (2 * count + 2 > pts.length) {
+      pts = Arrays.copyOf(pts, pts.length * 2);
+    }
+    pts[2 * count] = x;
+    pts[2 * count + 1] = y;
+    count++;
+  }
+
+  private void drawSegment(Graphics2D g) {
+    g.setPaint(paint);
+    g.setStroke(stroke);
+    g.draw(segment);
+  }
+
+  /**
+   * Extends the stroke and draws only the new segment, returning the area of
+   * the layer that changed, or null if the sample was skipped.
+   */
+  Rectangle lineTo(float x, float y) {
+    samples++;
+    float dx = x - pts[2 * count - 2], dy = y - pts[2 * count - 1];
+    if (dx * dx + dy * dy < minStep * minStep) {
+      pending = true;
+      pendingX = x;
+      pendingY = y;
+      return null;
+    }
+    pending = false;
+    return drawTo(x, y);
+  }
+
+  private Rectangle drawTo(float x, float y) {
+    float lastX = pts[2 * count - 2], lastY = pts[2 * count - 1];
+    addPoint(x, y);
+    segment.setLine(lastX, lastY, x, y);
+
+    Rectangle dirty = segment.getBounds();
+    if (reach >= 0) {
+      dirty.grow(reach, reach);
+    } else {
+      dirty = stroke.createStrokedShape(segment).getBounds();
+      dirty.grow(1, 1);
+    }
+    part.draw(dirty, drawSegment);
+    touched = touched == null ? dirty : touched.union(dirty);
+    return dirty;
+  }
+
+  /**
+   * Draws any sample that was held back, so the stroke ends where the
+   * pointer did. Returns the changed area, or null if there was nothing.
+   */
+  Rectangle flush() {
+    if (!pending) {
+      return null;
+    }
+    pending = false;
+    return drawTo(pendingX, pendingY);
+  }
+
+  /** The area of the layer drawn on so far, or null if nothing was. */
+  Rectangle touched() {
+    return touched;
+  }
+
+  /**
+   * Simplifies the finished stroke, draws it onto {@code target} and returns
+   * it for the history. The stroke is drawn again rather than copied from the
+   * layer, so that the target looks exactly like a replay of the history
+   * would; the layer is then brought back in step with the target.
+   */
+  ShapeDef finish(Surface target) {
+    int drawn = count;
+    int kept = StrokeSimplifier.simplify(pts, count, StrokeSimplifier.tolerance(stroke));
+    StrokeSimplifier.record(samples, drawn, kept);
+    ShapeDef sd = new ShapeDef(stroke, paint, StrokeSimplifier.toPath(pts, kept), null);
+
+    if (touched != null) {
+      sd.drawOn(target);
+      layer.copyFrom(target, touched);
+    }
+    return sd;
+  }
+}
@@ -0,0 +1,181 @@
+package annotationtool.canvas;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.FlatteningPathIterator;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * An immutable path held in exactly sized primitive arrays. Most strokes are
+ * a moveTo followed by lineTos, in which case no segment types are stored at
+ * all. Unlike {@link Path2D} there is no slack capacity, and the bounds are
+ * worked out once.
+ */
+final class PackedPath implements Shape {
+
+  private final float[] coords;
+  private final byte[] types; // null means moveTo then lineTo for every point
+  private final float minX, minY, maxX, maxY;
+
+  /**
+   * @param coords interleaved x,y values, not copied
+   * @param types  {@link PathIterator} segment types, or null for a polyline
+   */
+  PackedPath(float[] coords, byte[] types) {
+    this.coords = coords;
+    this.types = types;
+    float x0 = Float.POSITIVE_INFINITY, y0 = Float.POSITIVE_INFINITY;
+    float x1 = Float.NEGATIVE_INFINITY, y1 = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < coords.length; i += 2) {
+      x0 = Math.min(x0, coords[i]);
+      x1 = Math.max(x1, coords[i]);
+      y0 = Math.min(y0, coords[i + 1]);
+      y1 = Math.max(y1, coords[i + 1]);
+    }
+    if (coords.length == 0) {
+      x0 = y0 = x1 = y1 = 0;
+    }
+    minX = x0;
+    minY = y0;
+    maxX = x1;
+    maxY = y1;
+  }
+
+  float[] coords() {
+    return coords;
+  }
+
+  byte[] types() {
+    return types;
+  }
+
+  long heapBytes() {
+    return 48 + 16 + 4L * coords.length + (types == null ? 0 : 16 + types.length);
+  }
+
+  @Override
+  public Rectangle getBounds() {
+    return getBounds2D().getBounds();
+  }
+
+  @Override
+  public Rectangle2D getBounds2D() {
+    return new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+  }
+
+  @Override
+  public boolean contains(double x, double y) {
+    return toPath2D().contains(x, y);
+  }
+
+  @Override
+  public boolean contains(Point2D p) {
+    return contains(p.getX(), p.getY());
+  }
+
+  @Override
+  public boolean intersects(double x, double y, double w, double h) {
+    return toPath2D().intersects(x, y, w, h);
+  }
+
+  @Override
+  public boolean intersects(Rectangle2D r) {
+    return intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+  }
+
+  @Override
+  public boolean contains(double x, double y, double w, double h) {
+    return toPath2D().contains(x, y, w, h);
+  }
+
+  @Override
+  public boolean contains(Rectangle2D r) {
+    return contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+  }
+
+  @Override
+  public PathIterator getPathIterator(AffineTransform at) {
+    return new Iter(at);
+  }
+
+  @Override
+  public PathIterator getPathIterator(AffineTransform at, double flatness) {
+    return new FlatteningPathIterator(getPathIterator(at), flatness);
+  }
+
+  private Path2D.Float toPath2D() {
+    Path2D.Float p = new Path2D.Float();
+    p.append(getPathIterator(null), false);
+    return p;
+  }
+
+  private static int pointsIn(int type) {
+    return switch (type) {
+      case PathIterator.SEG_QUADTO -> 2;
+      case PathIterator.SEG_CUBICTO -> 3;
+      case PathIterator.SEG_CLOSE -> 0;
+      default -> 1;
+    };
+  }
+
+  private final class Iter implements PathIterator {
+    private final AffineTransform at;
+    private int segment;
+    private int coord;
+
+    Iter(AffineTransform at) {
+      this.at = at;
+    }
+
+    private int type() {
+      if (types != null) {
+        return types[segment];
+      }
+      return segment == 0 ? SEG_MOVETO : SEG_LINETO;
+    }
+
+    @Override
+    public int getWindingRule() {
+      return WIND_NON_ZERO;
+    }
+
+    @Override
+    public boolean isDone() {
+      return types != null ? segment >= types.length : coord >= coords.length;
+    }
+
+    @Override
+    public void next() {
+      coord += 2 * pointsIn(type());
+      segment++;
+    }
+
+    @Override
+    public int currentSegment(float[] out) {
+      int type = type();
+      int n = pointsIn(type);
+      System.arraycopy(coords, coord, out, 0, 2 * n);
+      if (at != null) {
+        at.transform(out, 0, out, 0, n);
+      }
+      return type;
+    }
+
+    @Override
+    public int currentSegment(double[] out) {
+      int type = type();
+      int n = pointsIn(type);
+      for (int i = 0; i < 2 * n; i++) {
+        out[i] = coords[coord + i];
+      }
+      if (at != null) {
+        at.transform(out, 0, out, 0, n);
+      }
+      return type;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package annotationtool.canvas;
+
+import annotationtool.metrics.Metrics;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * One page of the drawing, with its own history and journal. The engine
+ * draws on one page at a time. A page it has left keeps its picture as a
+ * checkpoint at the top of its history, so going back to it is a copy. A
+ * page further away than the engine keeps pages ready is parked: that
+ * picture is written out as the raw tiles of its layers to a temporary
+ * file, and its checkpoints are let go of and the pictures in its history
+ * compressed.
+ * <p>
+ * Journals are replayed, and pages parked and brought back, on a background
+ * thread while nobody is drawing on them; {@link #ready} waits for that to
+ * finish before the page is drawn on. A parked page's journal is closed too,
+ * and opened again without being replayed when the page is next drawn on.
+ */
+final class Page {
+
+  private static final ExecutorService PAGER = Executors.newSingleThreadExecutor(
+      Thread.ofVirtual().name("page-pager").factory());
+
+  final History history;
+  Journal journal; // null when not journalling
+  private final Path journalPath; // null for none
+  private final Consumer<String> problems; // told when the journal is turned off
+  private boolean opened; // whether the journal has been replayed
+  private boolean journalParked; // whether the journal was closed to park the page
+  private Path parkedFile; // the picture while parked, if there was one
+  // background work on the page, which must be done before it is touched
+  private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+  // false once the page should be parked
+  private volatile boolean near = true;
+
+  Page(History history, Path journalPath, Consumer<String> problems) {
+    this.history = history;
+    this.journalPath = journalPath;
+    this.problems = problems;
+  }
+
+  /**
+   * Makes the page safe to draw on: waits for any background work on it,
+   * then replays its journal or reads its parked picture if that hasn't
+   * been done already.
+   */
+  void ready() {
+    near = true;
+    pending.join();
+    open();
+    unpark();
+    reopenJournal();
+  }
+
+  /**
+   * The page's history, for reading while the page isn't being drawn on:
+   * waits for any background work on it and replays its journal if that
+   * hasn't been done, but leaves it parked if it is.
+   */
+  History settled() {
+    pending.join();
+    open();
+    return history;
+  }
+
+  /**
+   * Gets the page ready to be drawn on, with its picture, in the background,
+   * unless {@link #park} is called before that gets going.
+   */
+  void prefetch() {
+    near = true;
+    later(() -> {
+      if (!near) {
+        return; // passed by on the way somewhere else
+      }
+      open();
+      unpark();
+      if (history.picture() == null) {
+        history.renderPicture();
+      }
+    });
+  }
+
+  /**
+   * Parks the page in the background, unless {@link #prefetch} or
+   * {@link #ready} is called before that gets going.
+   */
+  void park() {
+    near = false;
+    later(() -> {
+      if (near || !opened || parkedFile != null) {
+        return;
+      }
+      Surface picture = history.picture();
+      if (picture != null) {
+        Path file = Files.createTempFile("annotate-page-", ".tiles");
+        file.toFile().deleteOnExit();
+        LayeredSurface.of(picture).write(file);
+        parkedFile = file;
+      }
+      history.park();
+      if (journal != null) {
+        closeJournal();
+        journalParked = true;
+      }
+    });
+  }
+
+  /**
+   * Finishes writing the journal and closes it, as when it stops being used
+   * or the program exits; nothing more is journalled for the page.
+   */
+  synchronized void closeJournal() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException ioe) {
+      System.err.println("Closing journal " + journalPath + " failed: " + ioe.getMessage());
+    }
+    journal = null;
+  }
+
+  private interface Work {
+    void run() throws IOException;
+  }
+
+  private void later(Work work) {
+    pending = pending.thenRunAsync(() -> {
+      try {
+        work.run();
+      } catch (IOException | RuntimeException ex) {
+        // the page can always be replayed from its history instead
+        System.err.println("Background work on a page failed: " + ex);
+      }
+    }, PAGER);
+  }
+
+  // replays the journal into the history the first time the page is used
+  private void open() {
+    if (opened) {
+      return;
+    }
+    opened = true;
+    if (journalPath == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      journal = Journal.open(journalPath, history.width(), history.height());
+      journal.replay(new Journal.Replay() {
+        @Override
+        public void commit(ShapeDef s) {
+          history.push(s, null);
+        }
+
+        @Override
+        public void undo() {
+          history.undo();
+        }
+
+        @Override
+        public void redo() {
+          history.redo();
+        }
+      });
+    } catch (IOException | IllegalArgumentException ex) {
+      problems.accept("Journal " + journalPath + " unusable, not journalling: "
+          + ex.getMessage());
+      closeJournal();
+      history.clear();
+      return;
+    }
+    if (journal.recoveredSnapshot() != null) {
+      history.seedCheckpoint(journal.recoveredSnapshotDepth(), journal.recoveredSnapshot());
+    }
+    history.enforceBudget();
+    Metrics.log(String.format("Journal %s: restored %d shapes in %d ms",
+        journalPath, history.depth(), (System.nanoTime() - start) / 1_000_000));
+  }
+
+  // opens the journal a parked page closed, to carry on writing to it
+  private void reopenJournal() {
+    if (!journalParked) {
+      return;
+    }
+    journalParked = false;
+    try {
+      journal = Journal.open(journalPath, history.width(), history.height());
+      journal.readDefinitions();
+    } catch (IOException | IllegalArgumentException ex) {
+      problems.accept("Journal " + journalPath + " unusable, not journalling: "
+          + ex.getMessage());
+      closeJournal();
+    }
+  }
+
+  // puts the parked picture back as the checkpoint at the top of the history
+  private void unpark() {
+    if (parkedFile == null) {
+      return;
+    }
+    try {
+      history.hold(LayeredSurface.read(parkedFile));
+    } catch (IOException ioe) {
+      System.err.println("Lost parked page, redrawing it: " + ioe.getMessage());
+    }
+    try {
+      Files.deleteIfExists(parkedFile);
+    } catch (IOException ioe) {
+      // deleteOnExit will have another go
+    }
+    parkedFile = null;
+  }
+}
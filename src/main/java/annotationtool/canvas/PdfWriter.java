@@ -0,0 +1,548 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a {@link VectorExport} as a PDF document with a page for each page
+ * of the drawing, one point to a pixel. Each page's drawing goes into one
+ * compressed content stream as it is read from the history; the lengths of
+ * streams, and the resources a page turns out to use, are written as
+ * objects of their own after them so nothing has to be held back. Pictures
+ * are written once and shared by every page that shows them. Strokes in a
+ * colour that isn't opaque are drawn opaque in a form of their own, which
+ * the alpha is applied to as a whole, so, as on screen, where they cross
+ * each other they don't build up.
+ * <p>
+ * Strokes that erase are written as soft masks. A mask in the graphics
+ * state replaces the one before rather than adding to it, so what is drawn
+ * on a layer between two runs of them is masked by a form that draws, in
+ * black on white, a form for each run after it, each run's strokes being
+ * written once in a form of their own.
+ */
+final class PdfWriter {
+
+  private final VectorExport export;
+  private final Counting out;
+  private final StringBuilder sb = new StringBuilder(4096);
+  private final float[] coords = new float[6];
+  private final byte[] bytes = new byte[8192]; // text on its way out
+  private long[] offsets = new long[64]; // of each object, by number
+  private int objects = 2; // 1 is the catalog and 2 the page tree
+  private final List<Integer> pageObjects = new ArrayList<>();
+  private final Map<BufferedImage, Integer> images = new IdentityHashMap<>();
+  // graphics states setting an alpha (0 to 255), by object number
+  private final Map<Integer, Integer> alphas = new TreeMap<>();
+
+  // the runs of erasing strokes on a layer, and the graphics state each
+  // one's mask is set with
+  private record Erasing(List<List<ShapeDef>> runs, int[] states) {
+  }
+
+  // a run of strokes in the same translucent colour, and the form they go in
+  private record Translucent(int form, Color color, List<ShapeDef> strokes) {
+  }
+
+  // the graphics state within the page being written
+  private Stroke stroke;
+  private Color strokeColor, fillColor;
+  private int strokeAlpha, fillAlpha;
+
+  // counts what is written, for the cross-reference table
+  private static final class Counting extends FilterOutputStream {
+    long count;
+
+    Counting(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  PdfWriter(VectorExport export, OutputStream out) {
+    this.export = export;
+    this.out = new Counting(new BufferedOutputStream(VectorExport.leaveOpen(out), 64 * 1024));
+  }
+
+  void write(List<VectorExport.PageContent> pages) throws IOException {
+    ascii(out, "%PDF-1.4\n");
+    // a comment of bytes over 127 tells readers the file is binary
+    out.write(new byte[] {'%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n'});
+    startObject(1);
+    ascii(out, "<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+    for (VectorExport.PageContent page : pages) {
+      writePage(page);
+    }
+    startObject(2);
+    sb.setLength(0);
+    sb.append("<< /Type /Pages /Count ").append(pageObjects.size()).append(" /Kids [");
+    for (int page : pageObjects) {
+      sb.append(' ').append(page).append(" 0 R");
+    }
+    sb.append(" ] >>\nendobj\n");
+    ascii(out, sb);
+    for (Map.Entry<Integer, Integer> gs : alphas.entrySet()) {
+      startObject(gs.getKey());
+      String alpha = VectorExport.fraction(new StringBuilder(), gs.getValue() / 255.0).toString();
+      ascii(out, "<< /Type /ExtGState /CA " + alpha + " /ca " + alpha + " >>\nendobj\n");
+    }
+
+    long xref = out.count;
+    sb.setLength(0);
+    sb.append("xref\n0 ").append(objects + 1).append("\n0000000000 65535 f \n");
+    for (int i = 1; i <= objects; i++) {
+      String offset = Long.toString(offsets[i]);
+      sb.append("0".repeat(10 - offset.length())).append(offset).append(" 00000 n \n");
+    }
+    sb.append("trailer\n<< /Size ").append(objects + 1).append(" /Root 1 0 R >>\nstartxref\n")
+        .append(xref).append("\n%%EOF\n");
+    ascii(out, sb);
+    out.close();
+  }
+
+  private int newObject() {
+    return ++objects;
+  }
+
+  private void startObject(int number) throws IOException {
+    if (number >= offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * number);
+    }
+    offsets[number] = out.count;
+    ascii(out, number + " 0 obj\n");
+  }
+
+  private void writePage(VectorExport.PageContent page) throws IOException {
+    int w = export.width(), h = export.height();
+    int pageObject = newObject();
+    int contents = newObject();
+    int resources = newObject();
+    pageObjects.add(pageObject);
+    startObject(pageObject);
+    ascii(out, "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + w + " " + h + "] /Contents "
+        + contents + " 0 R /Resources " + resources + " 0 R >>\nendobj\n");
+
+    // pictures have to be written outside the content stream, so they are
+    // only given their numbers here and written after it
+    List<BufferedImage> newImages = new ArrayList<>();
+    Map<Integer, Integer> pageAlphas = new TreeMap<>();
+    List<Erasing> masks = new ArrayList<>();
+    List<Translucent> groups = new ArrayList<>();
+    stroke = null;
+    strokeColor = fillColor = null;
+    strokeAlpha = fillAlpha = 255;
+    int length = newObject();
+    startObject(contents);
+    ascii(out, "<< /Length " + length + " 0 R /Filter /FlateDecode >>\nstream\n");
+    long start = out.count;
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    OutputStream content = new DeflaterOutputStream(VectorExport.leaveOpen(out), deflater,
+        64 * 1024);
+    try {
+      // canvas coordinates, with y going down
+      ascii(content, "1 0 0 -1 0 " + h + " cm\n");
+      Color background = VectorExport.color(page.background());
+      for (Layer layer : Layer.values()) {
+        ShapeDef[] shapes = page.layers()[layer.ordinal()];
+        List<List<ShapeDef>> runs = VectorExport.erasing(shapes);
+        if (runs.size() > VectorExport.MASKED_RUNS) {
+          drawImage(content, export.flatten(page, layer), newImages);
+          continue;
+        }
+        int[] states = new int[runs.size()];
+        for (int i = 0; i < states.length; i++) {
+          states[i] = newObject();
+        }
+        if (states.length > 0) {
+          masks.add(new Erasing(runs, states));
+        }
+        int run = 0;
+        sb.setLength(0);
+        if (run < states.length) {
+          sb.append("q /G").append(states[run]).append(" gs\n");
+        }
+        if (layer == Layer.BACKGROUND && background.getAlpha() > 0) {
+          fill(background, pageAlphas);
+          sb.append("0 0 ").append(w).append(' ').append(h).append(" re f\n");
+        }
+        ascii(content, sb);
+        if (page.base() != null) {
+          drawImage(content, page.base().part(layer).toImage(), newImages);
+        }
+        for (int i = 0; i < shapes.length; i++) {
+          ShapeDef s = shapes[i];
+          sb.setLength(0);
+          if (s.img() != null) {
+            drawImage(content, export.image(s.img()), newImages);
+            continue;
+          } else if (Layer.erases(s)) {
+            // Q puts back whatever the state was at the q
+            sb.append("Q\n");
+            stroke = null;
+            strokeColor = fillColor = null;
+            strokeAlpha = fillAlpha = -1;
+            i += runs.get(run).size() - 1;
+            if (++run < states.length) {
+              sb.append("q /G").append(states[run]).append(" gs\n");
+            }
+          } else if (VectorExport.color(s.paint()).getAlpha() < 255) {
+            Color color = VectorExport.color(s.paint());
+            int end = i + 1;
+            while (end < shapes.length && shapes[end].img() == null
+                && !Layer.erases(shapes[end]) && color.equals(shapes[end].paint())) {
+              end++;
+            }
+            int form = newObject();
+            groups.add(new Translucent(form, color, Arrays.asList(shapes).subList(i, end)));
+            if (color.getAlpha() != strokeAlpha) {
+              alpha(color.getAlpha(), pageAlphas);
+              strokeAlpha = fillAlpha = color.getAlpha();
+            }
+            sb.append("/T").append(form).append(" Do\n");
+            i = end - 1;
+          } else {
+            draw(s, VectorExport.color(s.paint()), pageAlphas);
+          }
+          ascii(content, sb);
+        }
+      }
+      content.close();
+    } finally {
+      deflater.end();
+    }
+    long streamLength = out.count - start;
+    ascii(out, "\nendstream\nendobj\n");
+    startObject(length);
+    ascii(out, streamLength + "\nendobj\n");
+
+    for (BufferedImage image : newImages) {
+      writeImage(image, images.get(image));
+    }
+    for (Erasing erasing : masks) {
+      writeMasks(erasing);
+    }
+    for (Translucent group : groups) {
+      Color opaque = new Color(group.color().getRGB() & 0xFFFFFF);
+      writeForm(group.form(), "/DeviceRGB", "", data -> {
+        for (ShapeDef s : group.strokes()) {
+          sb.setLength(0);
+          draw(s, opaque, null);
+          ascii(data, sb);
+        }
+      });
+    }
+    startObject(resources);
+    sb.setLength(0);
+    sb.append("<< /ProcSet [/PDF /ImageC]");
+    if (!pageAlphas.isEmpty() || !masks.isEmpty()) {
+      sb.append(" /ExtGState <<");
+      for (int gs : pageAlphas.keySet()) {
+        sb.append(" /G").append(gs).append(' ').append(gs).append(" 0 R");
+      }
+      for (Erasing erasing : masks) {
+        for (int gs : erasing.states()) {
+          sb.append(" /G").append(gs).append(' ').append(gs).append(" 0 R");
+        }
+      }
+      sb.append(" >>");
+    }
+    if (!images.isEmpty() || !groups.isEmpty()) {
+      // every picture so far, which is a few at most
+      sb.append(" /XObject <<");
+      for (int image : images.values()) {
+        sb.append(" /I").append(image).append(' ').append(image).append(" 0 R");
+      }
+      for (Translucent group : groups) {
+        sb.append(" /T").append(group.form()).append(' ').append(group.form()).append(" 0 R");
+      }
+      sb.append(" >>");
+    }
+    sb.append(" >>\nendobj\n");
+    ascii(out, sb);
+  }
+
+  // appends the stroke in the colour
+  private void draw(ShapeDef s, Color color, Map<Integer, Integer> pageAlphas) {
+    if (s.stroke() instanceof BasicStroke bs) {
+      pen(bs, color, pageAlphas);
+      path(s.shape().getPathIterator(null));
+      sb.append("S\n");
+    } else {
+      // a pen PDF can't describe is drawn as its outline
+      fill(color, pageAlphas);
+      path(s.stroke().createStrokedShape(s.shape()).getPathIterator(null));
+      sb.append("f\n");
+    }
+  }
+
+  // the graphics states setting the masks for a layer's runs of erasing
+  // strokes, the forms that draw the masks, and the forms they draw
+  private void writeMasks(Erasing erasing) throws IOException {
+    int w = export.width(), h = export.height();
+    int[] strokes = new int[erasing.states().length];
+    for (int run = 0; run < strokes.length; run++) {
+      List<ShapeDef> shapes = erasing.runs().get(run);
+      strokes[run] = newObject();
+      writeForm(strokes[run], "/DeviceGray", "", data -> {
+        for (ShapeDef s : shapes) {
+          sb.setLength(0);
+          draw(s, Color.BLACK, null);
+          ascii(data, sb);
+        }
+      });
+    }
+    for (int run = 0; run < strokes.length; run++) {
+      int first = run;
+      int form = newObject();
+      startObject(erasing.states()[run]);
+      ascii(out, "<< /Type /ExtGState /SMask << /Type /Mask /S /Luminosity /G " + form
+          + " 0 R >> >>\nendobj\n");
+      StringBuilder used = new StringBuilder(" /XObject <<");
+      for (int i = first; i < strokes.length; i++) {
+        used.append(" /F").append(strokes[i]).append(' ').append(strokes[i]).append(" 0 R");
+      }
+      writeForm(form, "/DeviceGray", used.append(" >>"), data -> {
+        sb.setLength(0);
+        fill(Color.WHITE, null);
+        sb.append("0 0 ").append(w).append(' ').append(h).append(" re f\n");
+        for (int i = first; i < strokes.length; i++) {
+          sb.append("/F").append(strokes[i]).append(" Do\n");
+        }
+        ascii(data, sb);
+      });
+    }
+  }
+
+  // what a form draws, written into its content stream
+  private interface FormContent {
+    void write(OutputStream data) throws IOException;
+  }
+
+  // a form covering the page, drawn as a group in the colour space, with the
+  // resources it uses
+  private void writeForm(int number, String colorSpace, CharSequence resources,
+      FormContent content) throws IOException {
+    int w = export.width(), h = export.height();
+    int length = newObject();
+    startObject(number);
+    ascii(out, "<< /Type /XObject /Subtype /Form /BBox [0 0 " + w + " " + h + "]"
+        + " /Group << /S /Transparency /CS " + colorSpace + " >> /Resources <<" + resources
+        + " >> /Length " + length + " 0 R /Filter /FlateDecode >>\nstream\n");
+    long start = out.count;
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (OutputStream data = new DeflaterOutputStream(VectorExport.leaveOpen(out), deflater,
+        64 * 1024)) {
+      // the form starts from the state it is drawn in, apart from the alpha;
+      // forms only paint opaque colours, so never set one
+      stroke = null;
+      strokeColor = fillColor = null;
+      strokeAlpha = fillAlpha = 255;
+      content.write(data);
+    } finally {
+      deflater.end();
+    }
+    long streamLength = out.count - start;
+    ascii(out, "\nendstream\nendobj\n");
+    startObject(length);
+    ascii(out, streamLength + "\nendobj\n");
+  }
+
+  // sets the pen, only where it differs from the one in use
+  private void pen(BasicStroke bs, Color color, Map<Integer, Integer> pageAlphas) {
+    if (bs != stroke) {
+      VectorExport.number(sb, bs.getLineWidth()).append(" w ");
+      // Java2D numbers its caps and joins the way PDF does
+      sb.append(bs.getEndCap()).append(" J ").append(bs.getLineJoin()).append(" j ");
+      VectorExport.number(sb, bs.getMiterLimit()).append(" M [");
+      float[] dash = bs.getDashArray();
+      if (dash != null) {
+        for (int i = 0; i < dash.length; i++) {
+          VectorExport.number(i > 0 ? sb.append(' ') : sb, dash[i]);
+        }
+      }
+      VectorExport.number(sb.append("] "), dash != null ? bs.getDashPhase() : 0).append(" d\n");
+      stroke = bs;
+    }
+    if (!color.equals(strokeColor)) {
+      rgb(color).append(" RG\n");
+      strokeColor = color;
+    }
+    if (color.getAlpha() != strokeAlpha) {
+      alpha(color.getAlpha(), pageAlphas);
+      strokeAlpha = fillAlpha = color.getAlpha();
+    }
+  }
+
+  private void fill(Color color, Map<Integer, Integer> pageAlphas) {
+    if (!color.equals(fillColor)) {
+      rgb(color).append(" rg\n");
+      fillColor = color;
+    }
+    if (color.getAlpha() != fillAlpha) {
+      alpha(color.getAlpha(), pageAlphas);
+      strokeAlpha = fillAlpha = color.getAlpha();
+    }
+  }
+
+  private StringBuilder rgb(Color c) {
+    VectorExport.fraction(sb, c.getRed() / 255.0).append(' ');
+    VectorExport.fraction(sb, c.getGreen() / 255.0).append(' ');
+    return VectorExport.fraction(sb, c.getBlue() / 255.0);
+  }
+
+  // switches to a graphics state with the alpha for both stroking and filling
+  private void alpha(int alpha, Map<Integer, Integer> pageAlphas) {
+    int gs = 0;
+    for (Map.Entry<Integer, Integer> e : alphas.entrySet()) {
+      if (e.getValue() == alpha) {
+        gs = e.getKey();
+      }
+    }
+    if (gs == 0) {
+      gs = newObject();
+      alphas.put(gs, alpha);
+    }
+    pageAlphas.put(gs, alpha);
+    sb.append("/G").append(gs).append(" gs\n");
+  }
+
+  private void path(PathIterator it) {
+    float x = 0, y = 0, startX = 0, startY = 0;
+    for (; !it.isDone(); it.next()) {
+      switch (it.currentSegment(coords)) {
+        case PathIterator.SEG_MOVETO -> {
+          point(coords[0], coords[1]).append(" m\n");
+          x = startX = coords[0];
+          y = startY = coords[1];
+        }
+        case PathIterator.SEG_LINETO -> {
+          point(coords[0], coords[1]).append(" l\n");
+          x = coords[0];
+          y = coords[1];
+        }
+        case PathIterator.SEG_QUADTO -> {
+          // PDF only has cubic curves, which a quadratic one is a case of
+          point(x + 2 * (coords[0] - x) / 3, y + 2 * (coords[1] - y) / 3).append(' ');
+          point(coords[2] + 2 * (coords[0] - coords[2]) / 3,
+              coords[3] + 2 * (coords[1] - coords[3]) / 3).append(' ');
+          point(coords[2], coords[3]).append(" c\n");
+          x = coords[2];
+          y = coords[3];
+        }
+        case PathIterator.SEG_CUBICTO -> {
+          point(coords[0], coords[1]).append(' ');
+          point(coords[2], coords[3]).append(' ');
+          point(coords[4], coords[5]).append(" c\n");
+          x = coords[4];
+          y = coords[5];
+        }
+        default -> {
+          sb.append("h\n");
+          x = startX;
+          y = startY;
+        }
+      }
+    }
+  }
+
+  private StringBuilder point(float x, float y) {
+    return VectorExport.number(VectorExport.number(sb, x).append(' '), y);
+  }
+
+  // draws the picture at the top left, numbering it if it is new
+  private void drawImage(OutputStream content, BufferedImage image, List<BufferedImage> newImages)
+      throws IOException {
+    Integer number = images.get(image);
+    if (number == null) {
+      number = newObject();
+      images.put(image, number);
+      newImages.add(image);
+    }
+    int w = image.getWidth(), h = image.getHeight();
+    ascii(content, "q " + w + " 0 0 " + -h + " 0 " + h + " cm /I" + number + " Do Q\n");
+  }
+
+  // the colours as one image, with the alpha as a soft mask image of its own
+  private void writeImage(BufferedImage image, int number) throws IOException {
+    boolean alpha = image.getColorModel().hasAlpha();
+    int mask = alpha ? newObject() : 0;
+    writeImageStream(image, number, false, mask);
+    if (alpha) {
+      writeImageStream(image, mask, true, 0);
+    }
+  }
+
+  private void writeImageStream(BufferedImage image, int number, boolean alpha, int mask)
+      throws IOException {
+    int w = image.getWidth(), h = image.getHeight();
+    int length = newObject();
+    startObject(number);
+    ascii(out, "<< /Type /XObject /Subtype /Image /Width " + w + " /Height " + h
+        + " /ColorSpace " + (alpha ? "/DeviceGray" : "/DeviceRGB") + " /BitsPerComponent 8"
+        + (mask != 0 ? " /SMask " + mask + " 0 R" : "")
+        + " /Filter /FlateDecode /Length " + length + " 0 R >>\nstream\n");
+    long start = out.count;
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (OutputStream data = new DeflaterOutputStream(VectorExport.leaveOpen(out), deflater,
+        64 * 1024)) {
+      int[] row = new int[w];
+      byte[] bytes = new byte[alpha ? w : 3 * w];
+      for (int y = 0; y < h; y++) {
+        image.getRGB(0, y, w, 1, row, 0, w);
+        for (int x = 0; x < w; x++) {
+          if (alpha) {
+            bytes[x] = (byte) (row[x] >>> 24);
+          } else {
+            bytes[3 * x] = (byte) (row[x] >> 16);
+            bytes[3 * x + 1] = (byte) (row[x] >> 8);
+            bytes[3 * x + 2] = (byte) row[x];
+          }
+        }
+        data.write(bytes);
+      }
+    } finally {
+      deflater.end();
+    }
+    long streamLength = out.count - start;
+    ascii(out, "\nendstream\nendobj\n");
+    startObject(length);
+    ascii(out, streamLength + "\nendobj\n");
+  }
+
+  // PDF syntax is all ASCII
+  private void ascii(OutputStream to, CharSequence text) throws IOException {
+    for (int from = 0; from < text.length(); from += bytes.length) {
+      int n = Math.min(bytes.length, text.length() - from);
+      for (int i = 0; i < n; i++) {
+        bytes[i] = (byte) text.charAt(from + i);
+      }
+      to.write(bytes, 0, n);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package annotationtool.canvas;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders the drawing recorded in a journal to a PNG file, without a display:
+ * <pre>
+ * java -Djava.awt.headless=true -cp JavaAnnotate-1.0-SNAPSHOT.jar \
+ *     annotationtool.canvas.RenderJournal journal.bin drawing.png
+ * </pre>
+ * The journal is opened as the tool would open it, so work on a copy of one
+ * that the tool is still using. Each page of a drawing has a journal of its
+ * own, and this renders the page whose journal is given.
+ */
+public final class RenderJournal {
+
+  private RenderJournal() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: java annotationtool.canvas.RenderJournal <journal> <png>");
+      System.exit(1);
+    }
+    Path journal = Paths.get(args[0]);
+    CanvasEngine engine = CanvasEngine.fromJournal(journal, new Color(0, 0, 0, 0));
+    ImageIO.write(engine.render(), "png", Paths.get(args[1]).toFile());
+    System.out.println(engine.stats());
+  }
+}
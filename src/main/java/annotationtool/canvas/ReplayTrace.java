@@ -0,0 +1,218 @@
+package annotationtool.canvas;
+
+import annotationtool.metrics.Histogram;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Replays input traces recorded with {@code -Dannotate.trace=<file>} against
+ * a fresh engine, without a display, and reports how fast it went:
+ * <pre>
+ * java -Djava.awt.headless=true -cp JavaAnnotate-1.0-SNAPSHOT.jar \
+ *     annotationtool.canvas.ReplayTrace [--fast] [--p99 ms] session.trace traces/
+ * </pre>
+ * Events are replayed at the pace they were recorded, or as fast as they
+ * go with {@code --fast}. Each is timed from when it was due (when it was
+ * handed over, with {@code --fast}) until what it changed has been copied
+ * to a frame the size of the canvas, as the window would paint it. Pictures
+ * that were loaded are read again before the clock starts; one that is gone
+ * is replaced with a blank one of the same size.
+ * <p>
+ * A directory stands for the {@code .trace} files in it, so a set of traces
+ * can be kept as a regression corpus. With {@code --p99}, the exit status is
+ * 1 if any trace's 99th percentile latency is over that many milliseconds.
+ * The checksum printed for each trace's final picture shows whether a
+ * change altered what gets drawn.
+ */
+public final class ReplayTrace {
+
+  private final boolean fast;
+  private final Histogram all = new Histogram();
+  private final Histogram[] byType = new Histogram[InputTrace.PAGE + 1];
+
+  private ReplayTrace(boolean fast) {
+    this.fast = fast;
+    for (int i = 0; i < byType.length; i++) {
+      byType[i] = new Histogram();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean fast = false;
+    double p99Limit = 0;
+    List<Path> traces = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--fast")) {
+        fast = true;
+      } else if (args[i].equals("--p99") && i + 1 < args.length) {
+        p99Limit = Double.parseDouble(args[++i]);
+      } else if (Files.isDirectory(Paths.get(args[i]))) {
+        try (Stream<Path> files = Files.list(Paths.get(args[i]))) {
+          files.filter(f -> f.getFileName().toString().endsWith(".trace")).sorted()
+              .forEach(traces::add);
+        }
+      } else {
+        traces.add(Paths.get(args[i]));
+      }
+    }
+    if (traces.isEmpty()) {
+      System.err.println("Usage: java annotationtool.canvas.ReplayTrace [--fast] [--p99 ms]"
+          + " <trace or directory>...");
+      System.exit(1);
+    }
+    boolean over = false;
+    for (Path trace : traces) {
+      ReplayTrace replay = new ReplayTrace(fast);
+      replay.run(trace);
+      if (p99Limit > 0 && replay.all.percentile(99) > p99Limit * 1e6) {
+        System.out.printf("%s: p99 over the %.3f ms limit%n", trace, p99Limit);
+        over = true;
+      }
+    }
+    System.exit(over ? 1 : 0);
+  }
+
+  private void run(Path file) throws IOException {
+    InputTrace.Trace trace = InputTrace.read(file);
+    List<InputTrace.Event> events = trace.events();
+    CanvasEngine engine = new CanvasEngine(trace.width(), trace.height(), trace.clearPaint());
+    Session session = new Session(engine);
+    Map<InputTrace.Event, BufferedImage> images = readImages(engine, events);
+    BufferedImage screen = new BufferedImage(trace.width(), trace.height(),
+        BufferedImage.TYPE_INT_ARGB_PRE);
+    Graphics2D g = screen.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+
+    long start = System.nanoTime();
+    for (InputTrace.Event e : events) {
+      long due = start + e.at();
+      if (!fast) {
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+          LockSupport.parkNanos(wait);
+        }
+      } else {
+        due = System.nanoTime();
+      }
+      Rectangle dirty = apply(session, e, images.get(e));
+      if (dirty != null) {
+        engine.frame().paintTo(g, dirty);
+      }
+      long took = System.nanoTime() - due;
+      all.record(took);
+      byType[e.type()].record(took);
+    }
+    long elapsed = System.nanoTime() - start;
+    g.dispose();
+    report(file, trace, elapsed, engine);
+  }
+
+  private static Rectangle apply(Session session, InputTrace.Event e, BufferedImage image) {
+    return switch (e.type()) {
+      case InputTrace.PRESS -> session.press(e.x(), e.y());
+      case InputTrace.DRAG -> session.drag(e.x(), e.y());
+      case InputTrace.RELEASE -> session.release(e.x(), e.y());
+      case InputTrace.PAINT -> {
+        session.setPaint((Color) e.arg());
+        yield null;
+      }
+      case InputTrace.STROKE -> {
+        session.setStroke((Stroke) e.arg());
+        yield null;
+      }
+      case InputTrace.ERASER -> {
+        session.setErasing();
+        yield null;
+      }
+      case InputTrace.UNDO -> session.undo();
+      case InputTrace.REDO -> session.redo();
+      case InputTrace.CLEAR -> session.clear((Color) e.arg());
+      case InputTrace.CLEAR_HISTORY -> session.clearHistory();
+      case InputTrace.LOAD -> session.loadImage(image, Paths.get((String) e.arg()));
+      case InputTrace.PAGE -> session.goToPage(e.x());
+      default -> null;
+    };
+  }
+
+  // the pictures the trace loads, read before the clock starts
+  private static Map<InputTrace.Event, BufferedImage> readImages(CanvasEngine engine,
+      List<InputTrace.Event> events) {
+    Map<InputTrace.Event, BufferedImage> images = new HashMap<>();
+    for (InputTrace.Event e : events) {
+      if (e.type() != InputTrace.LOAD) {
+        continue;
+      }
+      BufferedImage image = null;
+      Path from = Paths.get((String) e.arg());
+      if (Files.isRegularFile(from)) {
+        try {
+          image = engine.readImage(from, percent -> {
+          });
+        } catch (IOException ioe) {
+          System.err.println("Couldn't read " + from + ", using a blank picture: "
+              + ioe.getMessage());
+        }
+      } else {
+        System.err.println(from + " is gone, using a blank picture");
+      }
+      if (image == null) {
+        image = new BufferedImage(Math.max(1, e.x()), Math.max(1, e.y()),
+            BufferedImage.TYPE_INT_ARGB);
+      }
+      images.put(e, image);
+    }
+    return images;
+  }
+
+  private void report(Path file, InputTrace.Trace trace, long elapsed, CanvasEngine engine) {
+    double seconds = elapsed / 1e9;
+    long recorded = trace.events().isEmpty() ? 0 : trace.events().getLast().at();
+    System.out.printf("%s: %d events on %dx%d in %.2f s (recorded over %.2f s), %.0f events/s%n",
+        file, all.count(), trace.width(), trace.height(), seconds, recorded / 1e9,
+        seconds > 0 ? all.count() / seconds : 0);
+    System.out.println("  " + line("all", all));
+    for (byte type = 1; type < byType.length; type++) {
+      if (byType[type].count() > 0) {
+        System.out.println("  " + line(InputTrace.name(type), byType[type]));
+      }
+    }
+    System.out.printf("  picture crc %08x; %s%n", checksum(engine.render()), engine.stats());
+  }
+
+  private static String line(String label, Histogram h) {
+    return String.format("%-13s %7d  p50 %7.3f  p90 %7.3f  p99 %7.3f  p99.9 %7.3f  max %7.3f ms",
+        label, h.count(), h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+        h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6);
+  }
+
+  private static long checksum(BufferedImage image) {
+    CRC32 crc = new CRC32();
+    int[] row = new int[image.getWidth()];
+    byte[] bytes = new byte[4 * row.length];
+    for (int y = 0; y < image.getHeight(); y++) {
+      image.getRGB(0, y, row.length, 1, row, 0, row.length);
+      for (int x = 0; x < row.length; x++) {
+        bytes[4 * x] = (byte) (row[x] >>> 24);
+        bytes[4 * x + 1] = (byte) (row[x] >>> 16);
+        bytes[4 * x + 2] = (byte) (row[x] >>> 8);
+        bytes[4 * x + 3] = (byte) row[x];
+      }
+      crc.update(bytes);
+    }
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,194 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * What the user does to an engine: the pen and paint (or eraser) they have
+ * chosen, and the presses, drags, releases and actions they make with it.
+ * The window drives the engine through one of these, and so does
+ * {@link ReplayTrace}, so that a replayed trace goes through the same steps
+ * as the session it was recorded from.
+ * <p>
+ * While {@link #traceTo tracing}, everything is also written to an
+ * {@link InputTrace} as it happens. Like the engine, a session is only used
+ * from one thread at a time.
+ */
+public final class Session {
+
+  private final CanvasEngine engine;
+  private Paint paint;
+  private Stroke stroke;
+  private boolean erasing; // dragging removes whole strokes instead of drawing
+  private InputTrace.Writer trace; // null when not tracing
+  private Path traceFile;
+  private Thread exitHook;
+
+  public Session(CanvasEngine engine) {
+    this.engine = engine;
+  }
+
+  public CanvasEngine engine() {
+    return engine;
+  }
+
+  /**
+   * Records everything done from now on to a new trace file, which is
+   * finished when tracing stops or the program exits.
+   */
+  public void traceTo(Path file) throws IOException {
+    stopTracing();
+    InputTrace.Writer writer = new InputTrace.Writer(file, engine.width(), engine.height(),
+        engine.clearPaint());
+    synchronized (this) {
+      trace = writer;
+      traceFile = file;
+    }
+    exitHook = new Thread(this::closeTrace);
+    Runtime.getRuntime().addShutdownHook(exitHook);
+    // a trace starts from the pen and paint already chosen
+    if (paint != null) {
+      traced(t -> t.paint(InputTrace.PAINT, paint));
+    }
+    if (stroke != null) {
+      traced(t -> t.stroke(stroke));
+    }
+    if (erasing) {
+      traced(t -> t.action(InputTrace.ERASER));
+    }
+  }
+
+  public void stopTracing() {
+    if (trace == null) {
+      return;
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(exitHook);
+    } catch (IllegalStateException exiting) {
+      // the hook is already running
+    }
+    closeTrace();
+  }
+
+  private synchronized void closeTrace() {
+    if (trace != null) {
+      try {
+        trace.close();
+      } catch (IOException ioe) {
+        System.err.println("Couldn't finish input trace " + traceFile + ": " + ioe.getMessage());
+      }
+      trace = null;
+    }
+  }
+
+  private interface TraceAction {
+    void apply(InputTrace.Writer trace) throws IOException;
+  }
+
+  // synchronized with closing the trace when the program exits
+  private synchronized void traced(TraceAction action) {
+    if (trace == null) {
+      return;
+    }
+    try {
+      action.apply(trace);
+    } catch (IOException ioe) {
+      System.err.println("Input trace " + traceFile + " stopped: " + ioe.getMessage());
+      stopTracing();
+    }
+  }
+
+  public void setPaint(Paint paint) {
+    traced(t -> t.paint(InputTrace.PAINT, paint));
+    this.paint = paint;
+    erasing = false;
+  }
+
+  public void setErasing() {
+    traced(t -> t.action(InputTrace.ERASER));
+    erasing = true;
+  }
+
+  public void setStroke(Stroke stroke) {
+    traced(t -> t.stroke(stroke));
+    this.stroke = stroke;
+  }
+
+  /**
+   * Returns the area of the canvas that changed, or null if nothing did.
+   * Pressing with the pen changes nothing on screen (the layer starts as a
+   * copy of the main image); the area under each new segment, and finally
+   * under the whole committed stroke, is returned by the drags and release.
+   */
+  public Rectangle press(int x, int y) {
+    traced(t -> t.mouse(InputTrace.PRESS, x, y));
+    if (erasing) {
+      return erase(x, y);
+    }
+    engine.beginStroke(stroke, paint, x, y);
+    return null;
+  }
+
+  public Rectangle drag(int x, int y) {
+    traced(t -> t.mouse(InputTrace.DRAG, x, y));
+    if (erasing) {
+      return erase(x, y);
+    }
+    return engine.isStroking() ? engine.extendStroke(x, y) : null;
+  }
+
+  public Rectangle release(int x, int y) {
+    traced(t -> t.mouse(InputTrace.RELEASE, x, y));
+    return !erasing && engine.isStroking() ? engine.endStroke() : null;
+  }
+
+  private Rectangle erase(int x, int y) {
+    // the eraser is as wide as the pen size
+    float radius = stroke instanceof BasicStroke bs ? bs.getLineWidth() / 2 : 1;
+    return engine.eraseAt(x, y, radius);
+  }
+
+  public Rectangle undo() {
+    traced(t -> t.action(InputTrace.UNDO));
+    return engine.undo();
+  }
+
+  public Rectangle redo() {
+    traced(t -> t.action(InputTrace.REDO));
+    return engine.redo();
+  }
+
+  /** Returns the whole canvas, which has changed. */
+  public Rectangle clear(Paint paint) {
+    traced(t -> t.paint(InputTrace.CLEAR, paint));
+    engine.clear(paint);
+    return new Rectangle(0, 0, engine.width(), engine.height());
+  }
+
+  public Rectangle clearHistory() {
+    traced(t -> t.action(InputTrace.CLEAR_HISTORY));
+    engine.clearHistory();
+    return new Rectangle(0, 0, engine.width(), engine.height());
+  }
+
+  /**
+   * Starts a fresh history with a picture read from {@code from} by
+   * {@link CanvasEngine#readImage}; the trace keeps the file name, not the
+   * picture.
+   */
+  public Rectangle loadImage(BufferedImage image, Path from) {
+    traced(t -> t.load(from, image.getWidth(), image.getHeight()));
+    engine.loadImage(image);
+    return new Rectangle(0, 0, engine.width(), engine.height());
+  }
+
+  public Rectangle goToPage(int index) {
+    traced(t -> t.page(index));
+    return engine.goToPage(index);
+  }
+}
@@ -0,0 +1,147 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+
+/**
+ * One entry in the drawing history: a stroked shape, an image (when stroke
+ * is null), a clear of the whole canvas to the paint (when both stroke and
+ * image are null), or the erasing of earlier entries (when {@code erased}
+ * holds their absolute depths, lowest first).
+ */
+record ShapeDef(Stroke stroke, Paint paint, Shape shape, StoredImage img, int[] erased) {
+
+  ShapeDef(Stroke stroke, Paint paint, Shape shape, StoredImage img) {
+    this(stroke, paint, shape, img, null);
+  }
+
+  static ShapeDef clear(Paint paint) {
+    return new ShapeDef(null, paint, null, null);
+  }
+
+  static ShapeDef erase(int[] depths) {
+    return new ShapeDef(null, null, null, null, depths);
+  }
+
+  boolean isClear() {
+    return stroke == null && img == null && erased == null;
+  }
+
+  boolean isErase() {
+    return erased != null;
+  }
+
+  /**
+   * Draws the entry onto {@code target} as it is committed or redone,
+   * touching only the area it covers. Erasing is left to the history, which
+   * knows what was under the entries.
+   */
+  void drawOn(Surface target) {
+    if (isClear()) {
+      target.fill(paint);
+    } else if (!isErase()) {
+      target.drawEntry(this, bounds(), true);
+    }
+  }
+
+  /**
+   * Like {@link #drawOn(Surface)}, but only inside {@code area} (everywhere
+   * if null), and as part of a replay rather than a commit.
+   */
+  void drawOn(Surface target, Rectangle area) {
+    if (isClear()) {
+      if (area == null) {
+        target.fill(paint);
+      } else {
+        target.fill(paint, area);
+      }
+    } else if (!isErase()) {
+      target.drawEntry(this, area == null ? bounds() : bounds().intersection(area), false);
+    }
+  }
+
+  /** The area the entry can change, for strokes and images. */
+  Rectangle bounds() {
+    if (img != null) {
+      return new Rectangle(0, 0, img.width(), img.height());
+    }
+    int reach = reach(stroke);
+    if (reach < 0) {
+      Rectangle r = stroke.createStrokedShape(shape).getBounds();
+      r.grow(1, 1);
+      return r;
+    }
+    Rectangle r = shape.getBounds();
+    r.grow(reach, reach);
+    return r;
+  }
+
+  /**
+   * How far a stroke can reach beyond the points it goes through, allowing
+   * for antialiasing, or -1 if that isn't known for this kind of stroke.
+   */
+  static int reach(Stroke stroke) {
+    if (stroke instanceof BasicStroke bs) {
+      double scale = 1;
+      if (bs.getEndCap() == BasicStroke.CAP_SQUARE) {
+        scale = Math.sqrt(2);
+      }
+      if (bs.getLineJoin() == BasicStroke.JOIN_MITER) {
+        scale = Math.max(scale, bs.getMiterLimit());
+      }
+      return (int) Math.ceil(bs.getLineWidth() / 2.0 * scale) + 2;
+    }
+    return -1;
+  }
+
+  void draw(Graphics2D g) {
+    if (erased != null) {
+      return;
+    }
+    if (stroke != null) {
+      g.setPaint(paint);
+      g.setStroke(stroke);
+      g.draw(shape);
+    } else if (img != null) {
+      g.drawImage(img.get(), 0, 0, null);
+    } else {
+      // expects the Src composite, like everything else in the history; an
+      // unclipped fill is cut down to the target's bounds by Java2D
+      Rectangle area = g.getClipBounds();
+      g.setPaint(paint);
+      if (area != null) {
+        g.fillRect(area.x, area.y, area.width, area.height);
+      } else {
+        g.fillRect(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+      }
+    }
+  }
+
+  /** Rough number of heap bytes this entry keeps alive on its own. */
+  long heapBytes() {
+    long bytes = 32;
+    if (shape instanceof PackedPath pp) {
+      bytes += pp.heapBytes();
+    }
+    if (img != null) {
+      bytes += img.heapBytes();
+    }
+    if (erased != null) {
+      bytes += 16 + 4L * erased.length;
+    }
+    return bytes;
+  }
+
+  /** Called when the entry leaves the history for good. */
+  void release() {
+    if (img != null) {
+      img.discard();
+    } else if (stroke != null) {
+      Sprite.forget(this);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The strokes and images in the undo stack, filed under a uniform grid of
+ * square cells by the area each can reach, so that finding what lies under
+ * a point or inside a rectangle only looks at the entries near it rather
+ * than the whole history.
+ * <p>
+ * Entries are found by their absolute depth in the history or by their
+ * {@link ShapeDef}, and stay in the index while they are erased (hidden) so that
+ * undoing the erase only has to show them again. Each cell keeps its entries
+ * in depth order.
+ */
+final class ShapeIndex {
+
+  private static final int CELL_SIZE = 128;
+
+  static final class Entry {
+    final int depth;
+    final ShapeDef shape;
+    final Rectangle bounds;
+    private int hiddenBy; // erase entries in the undo stack that hide this one
+    private int stamp; // the last query that found this entry
+
+    private Entry(int depth, ShapeDef shape) {
+      this.depth = depth;
+      this.shape = shape;
+      this.bounds = shape.bounds();
+    }
+  }
+
+  private final int width, height, cols, rows;
+  private final List<List<Entry>> cells; // null for a cell nothing reaches
+  private final Map<Integer, Entry> byDepth = new HashMap<>();
+  private final Map<ShapeDef, Entry> byShape = new IdentityHashMap<>();
+  private int stamp;
+
+  ShapeIndex(int width, int height) {
+    this.width = width;
+    this.height = height;
+    cols = (width + CELL_SIZE - 1) / CELL_SIZE;
+    rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+    cells = new ArrayList<>(Collections.nCopies(cols * rows, null));
+  }
+
+  /** Files a stroke or image that is now at {@code depth}, above all others. */
+  void add(int depth, ShapeDef s) {
+    Entry e = new Entry(depth, s);
+    byDepth.put(depth, e);
+    byShape.put(s, e);
+    forCells(e.bounds, i -> {
+      List<Entry> cell = cells.get(i);
+      if (cell == null) {
+        cell = new ArrayList<>();
+        cells.set(i, cell);
+      }
+      cell.add(e);
+    });
+  }
+
+  /** Takes out {@code s}, which is the top of its cells. */
+  void remove(ShapeDef s) {
+    Entry e = byShape.remove(s);
+    if (e != null) {
+      byDepth.remove(e.depth);
+      forCells(e.bounds, i -> {
+        List<Entry> cell = cells.get(i);
+        cell.remove(cell.lastIndexOf(e));
+      });
+    }
+  }
+
+  /** Takes out every entry at or below {@code depth}. */
+  void removeThrough(int depth) {
+    byDepth.values().removeIf(e -> e.depth <= depth);
+    byShape.values().removeIf(e -> e.depth <= depth);
+    for (List<Entry> cell : cells) {
+      if (cell != null) {
+        cell.removeIf(e -> e.depth <= depth);
+      }
+    }
+  }
+
+  void clear() {
+    byDepth.clear();
+    byShape.clear();
+    Collections.fill(cells, null);
+  }
+
+  /** The entry at {@code depth}, or null if there is no stroke or image there. */
+  Entry at(int depth) {
+    return byDepth.get(depth);
+  }
+
+  /** The entry for {@code s}, or null if it isn't in the undo stack. */
+  Entry of(ShapeDef s) {
+    return byShape.get(s);
+  }
+
+  boolean isHidden(ShapeDef s) {
+    Entry e = byShape.get(s);
+    return e != null && e.hiddenBy > 0;
+  }
+
+  /** Hides the entry until {@link #show} is called as often as this was. */
+  void hide(Entry e) {
+    e.hiddenBy++;
+  }
+
+  void show(Entry e) {
+    e.hiddenBy--;
+  }
+
+  /**
+   * The entries above {@code aboveDepth} that aren't hidden and may reach
+   * into {@code area}, lowest first.
+   */
+  List<Entry> query(Rectangle area, int aboveDepth) {
+    List<Entry> found = new ArrayList<>();
+    int query = ++stamp;
+    forCells(area, i -> {
+      List<Entry> cell = cells.get(i);
+      if (cell == null) {
+        return;
+      }
+      for (int k = cell.size() - 1; k >= 0; k--) {
+        Entry e = cell.get(k);
+        if (e.depth <= aboveDepth) {
+          break; // the rest of the cell is older still
+        }
+        if (e.stamp != query && e.hiddenBy == 0 && e.bounds.intersects(area)) {
+          e.stamp = query;
+          found.add(e);
+        }
+      }
+    });
+    found.sort(Comparator.comparingInt(e -> e.depth));
+    return found;
+  }
+
+  /**
+   * The depths, lowest first, of the visible strokes above {@code aboveDepth}
+   * that pass within {@code radius} of the point.
+   */
+  int[] hitTest(float x, float y, float radius, int aboveDepth) {
+    Rectangle probe = new Rectangle2D.Float(x - radius, y - radius, 2 * radius, 2 * radius)
+        .getBounds();
+    int[] hits = new int[0];
+    for (Entry e : query(probe, aboveDepth)) {
+      if (e.shape.stroke() != null && touches(e.shape, x, y, radius)) {
+        hits = Arrays.copyOf(hits, hits.length + 1);
+        hits[hits.length - 1] = e.depth;
+      }
+    }
+    return hits;
+  }
+
+  // whether the stroked outline of s comes within radius of the point
+  private static boolean touches(ShapeDef s, float x, float y, float radius) {
+    if (!(s.stroke() instanceof BasicStroke bs)) {
+      return s.stroke().createStrokedShape(s.shape())
+          .intersects(x - radius, y - radius, 2 * radius, 2 * radius);
+    }
+    double reach = bs.getLineWidth() / 2 + radius;
+    double limit = reach * reach;
+    double[] c = new double[6];
+    double startX = 0, startY = 0, lastX = 0, lastY = 0;
+    for (PathIterator pi = s.shape().getPathIterator(null, 0.5); !pi.isDone(); pi.next()) {
+      switch (pi.currentSegment(c)) {
+        case PathIterator.SEG_MOVETO -> {
+          startX = lastX = c[0];
+          startY = lastY = c[1];
+          // a path that never moves still draws a dot
+          if (Line2D.ptSegDistSq(lastX, lastY, lastX, lastY, x, y) <= limit) {
+            return true;
+          }
+        }
+        case PathIterator.SEG_LINETO -> {
+          if (Line2D.ptSegDistSq(lastX, lastY, c[0], c[1], x, y) <= limit) {
+            return true;
+          }
+          lastX = c[0];
+          lastY = c[1];
+        }
+        case PathIterator.SEG_CLOSE -> {
+          if (Line2D.ptSegDistSq(lastX, lastY, startX, startY, x, y) <= limit) {
+            return true;
+          }
+          lastX = startX;
+          lastY = startY;
+        }
+        default -> {
+        }
+      }
+    }
+    return false;
+  }
+
+  private void forCells(Rectangle area, CellAction action) {
+    Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+    if (r.isEmpty()) {
+      return;
+    }
+    int c0 = r.x / CELL_SIZE, c1 = (r.x + r.width - 1) / CELL_SIZE;
+    int r0 = r.y / CELL_SIZE, r1 = (r.y + r.height - 1) / CELL_SIZE;
+    for (int row = r0; row <= r1; row++) {
+      for (int col = c0; col <= c1; col++) {
+        action.apply(row * cols + col);
+      }
+    }
+  }
+
+  private interface CellAction {
+    void apply(int index);
+  }
+}
@@ -0,0 +1,213 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How much of each pixel a stroke covers, worked out once so that drawing
+ * the stroke again is a blend of its colour straight into a tile's pixels
+ * instead of another trip through the Java2D rasterizer, which is most of
+ * the cost of a replay. Only the part of each row the stroke touches is
+ * kept. The blend is the one Java2D does for the {@link AlphaComposite#Src}
+ * composite into {@code INT_ARGB} pixels, down to its rounding tables, so a
+ * stroke comes out exactly as drawing it would, and a replay looks the same
+ * whether or not the cache had the sprites.
+ * <p>
+ * Sprites are made when an entry is committed or redone, and kept in a cache
+ * of {@code annotate.sprite.cachemb} megabytes (64 unless set, 0 for none)
+ * that lets go of the least recently used when full, and of an entry's
+ * sprite when the entry leaves the history. A replay uses the sprite if
+ * there is one and draws the entry if not, so it never waits for one to be
+ * made.
+ */
+final class Sprite {
+
+  private static final long BUDGET =
+      Integer.getInteger("annotate.sprite.cachemb", 64) * 1024L * 1024;
+  // in access order, least recently used first
+  private static final Map<ShapeDef, Sprite> CACHE = new LinkedHashMap<>(256, 0.75f, true);
+  private static long cachedBytes;
+
+  private final Rectangle bounds;
+  private final int argb;
+  // the first pixel each row covers, from bounds.x, or -1 for none
+  private final int[] rowX;
+  // where each row starts in coverage; the last element is the end
+  private final int[] rowStart;
+  private final byte[] coverage;
+
+  private Sprite(Rectangle bounds, int argb, int[] rowX, int[] rowStart, byte[] coverage) {
+    this.bounds = bounds;
+    this.argb = argb;
+    this.rowX = rowX;
+    this.rowStart = rowStart;
+    this.coverage = coverage;
+  }
+
+  /** The entry's sprite if one is cached, otherwise null. */
+  static Sprite cached(ShapeDef s) {
+    synchronized (CACHE) {
+      return CACHE.get(s);
+    }
+  }
+
+  /**
+   * The entry's sprite, made now if it isn't cached, or null if the entry
+   * isn't a stroke in a plain colour or is too big to be worth caching.
+   */
+  static Sprite make(ShapeDef s) {
+    if (BUDGET <= 0 || s.stroke() == null || !(s.paint() instanceof Color c)) {
+      return null;
+    }
+    Sprite sprite = cached(s);
+    if (sprite != null) {
+      return sprite;
+    }
+    Rectangle b = s.bounds();
+    if (b.isEmpty() || (long) b.width * b.height > BUDGET / 8) {
+      return null;
+    }
+    // Java2D stores a colour with no alpha as 0, whatever else it has
+    sprite = build(s, b, c.getAlpha() == 0 ? 0 : c.getRGB());
+    synchronized (CACHE) {
+      Sprite old = CACHE.put(s, sprite);
+      cachedBytes += sprite.heapBytes() - (old != null ? old.heapBytes() : 0);
+      for (Iterator<Sprite> eldest = CACHE.values().iterator();
+          cachedBytes > BUDGET && eldest.hasNext(); ) {
+        cachedBytes -= eldest.next().heapBytes();
+        eldest.remove();
+      }
+    }
+    return sprite;
+  }
+
+  /** Lets go of the entry's sprite, if it has one. */
+  static void forget(ShapeDef s) {
+    synchronized (CACHE) {
+      Sprite old = CACHE.remove(s);
+      if (old != null) {
+        cachedBytes -= old.heapBytes();
+      }
+    }
+  }
+
+  // draws the stroke in white on black, which leaves the coverage in the pixels
+  private static Sprite build(ShapeDef s, Rectangle b, int argb) {
+    BufferedImage mask = new BufferedImage(b.width, b.height, BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D g = mask.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setComposite(AlphaComposite.Src);
+    g.translate(-b.x, -b.y);
+    g.setColor(Color.WHITE);
+    g.setStroke(s.stroke());
+    g.draw(s.shape());
+    g.dispose();
+
+    byte[] px = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+    int[] rowX = new int[b.height];
+    int[] rowStart = new int[b.height + 1];
+    byte[] coverage = new byte[Math.min(px.length, 4 * (b.width + b.height))];
+    int n = 0;
+    for (int y = 0; y < b.height; y++) {
+      int row = y * b.width, first = 0, last = b.width - 1;
+      while (first <= last && px[row + first] == 0) {
+        first++;
+      }
+      while (last >= first && px[row + last] == 0) {
+        last--;
+      }
+      rowStart[y] = n;
+      if (first > last) {
+        rowX[y] = -1;
+        continue;
+      }
+      rowX[y] = first;
+      int len = last - first + 1;
+      if (n + len > coverage.length) {
+        int size = Math.min(px.length, Math.max(n + len, 2 * coverage.length));
+        coverage = Arrays.copyOf(coverage, size);
+      }
+      System.arraycopy(px, row + first, coverage, n, len);
+      n += len;
+    }
+    rowStart[b.height] = n;
+    return new Sprite(b, argb, rowX, rowStart, Arrays.copyOf(coverage, n));
+  }
+
+  long heapBytes() {
+    return 96 + 8L * rowX.length + coverage.length;
+  }
+
+  /**
+   * Blends the stroke into {@code tile}, an {@code INT_ARGB} image whose top
+   * left is at ({@code ox}, {@code oy}) on the canvas, inside {@code clip}.
+   */
+  void drawOn(BufferedImage tile, int ox, int oy, Rectangle clip) {
+    int tw = tile.getWidth();
+    int x0 = Math.max(Math.max(bounds.x, clip.x), ox);
+    int x1 = Math.min(Math.min(bounds.x + bounds.width, clip.x + clip.width), ox + tw);
+    int y0 = Math.max(Math.max(bounds.y, clip.y), oy);
+    int y1 = Math.min(Math.min(bounds.y + bounds.height, clip.y + clip.height),
+        oy + tile.getHeight());
+    if (x0 >= x1 || y0 >= y1) {
+      return;
+    }
+    int[] dst = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    int sa = argb >>> 24;
+    int pr = mul(sa, (argb >> 16) & 255), pg = mul(sa, (argb >> 8) & 255), pb = mul(sa, argb & 255);
+    for (int y = y0; y < y1; y++) {
+      int r = y - bounds.y;
+      if (rowX[r] < 0) {
+        continue;
+      }
+      int from = Math.max(x0, bounds.x + rowX[r]);
+      int to = Math.min(x1, bounds.x + rowX[r] + rowStart[r + 1] - rowStart[r]);
+      int cov = rowStart[r] - bounds.x - rowX[r];
+      int out = (y - oy) * tw - ox;
+      for (int x = from; x < to; x++) {
+        int c = coverage[cov + x] & 255;
+        if (c == 255) {
+          dst[out + x] = argb;
+        } else if (c != 0) {
+          // what Java2D does for a partly covered pixel: mix the premultiplied
+          // colours by the coverage, then take the alpha back out
+          int d = dst[out + x], df = mul(255 - c, d >>> 24);
+          int ra = df + mul(c, sa);
+          int rr = mul(df, (d >> 16) & 255) + mul(c, pr);
+          int rg = mul(df, (d >> 8) & 255) + mul(c, pg);
+          int rb = mul(df, d & 255) + mul(c, pb);
+          if (ra > 0 && ra < 255) {
+            rr = div(rr, ra);
+            rg = div(rg, ra);
+            rb = div(rb, ra);
+          }
+          dst[out + x] = ra << 24 | rr << 16 | rg << 8 | rb;
+        }
+      }
+    }
+  }
+
+  // a * b / 255, rounded as Java2D's mul8table has it: the product fits
+  // in 32 bits when taken as unsigned
+  private static int mul(int a, int b) {
+    return (a * b * 0x010101 + 0x800000) >>> 24;
+  }
+
+  // v * 255 / a, rounded as Java2D's div8table has it
+  private static int div(int v, int a) {
+    if (v >= a) {
+      return 255;
+    }
+    return (int) (((1L << 23) + v * ((0xFF000000L + a / 2) / a)) >>> 24);
+  }
+}
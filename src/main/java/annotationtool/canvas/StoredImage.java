@@ -0,0 +1,114 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+
+/**
+ * An image kept in the history. It starts out as a plain raster, and can be
+ * spilled to PNG bytes (in memory, or in a temp file when they are large) to
+ * take it off the heap; after that it is decoded again when needed and the
+ * decoded copy is only held softly.
+ */
+final class StoredImage {
+
+  private static final int SPILL_TO_DISK_BYTES =
+      Integer.getInteger("annotate.history.spillkb", 1024) * 1024;
+
+  private final int width, height;
+  private BufferedImage raster; // null once spilled
+  private SoftReference<BufferedImage> decoded;
+  private byte[] png;
+  private Path file;
+
+  StoredImage(Image img) {
+    width = img.getWidth(null);
+    height = img.getHeight(null);
+    if (img instanceof BufferedImage bi) {
+      raster = bi;
+    } else {
+      // also forces lazily produced images (e.g. getScaledInstance) to exist
+      raster = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = raster.createGraphics();
+      g.setComposite(AlphaComposite.Src);
+      g.drawImage(img, 0, 0, null);
+      g.dispose();
+    }
+  }
+
+  int width() {
+    return width;
+  }
+
+  int height() {
+    return height;
+  }
+
+  BufferedImage get() {
+    if (raster != null) {
+      return raster;
+    }
+    BufferedImage bi = decoded != null ? decoded.get() : null;
+    if (bi == null) {
+      try {
+        byte[] bytes = png != null ? png : Files.readAllBytes(file);
+        bi = ImageIO.read(new ByteArrayInputStream(bytes));
+      } catch (IOException ioe) {
+        throw new UncheckedIOException("Lost spilled history image", ioe);
+      }
+      decoded = new SoftReference<>(bi);
+    }
+    return bi;
+  }
+
+  boolean isSpilled() {
+    return raster == null;
+  }
+
+  long heapBytes() {
+    return 64 + (raster != null ? 4L * width * height : 0)
+        + (png != null ? 16 + png.length : 0);
+  }
+
+  /** Compresses the raster and lets it go. */
+  void spill() throws IOException {
+    if (raster == null) {
+      return;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(raster, "png", out);
+    if (out.size() > SPILL_TO_DISK_BYTES) {
+      file = Files.createTempFile("annotate-history-", ".png");
+      file.toFile().deleteOnExit();
+      try (OutputStream fileOut = Files.newOutputStream(file)) {
+        out.writeTo(fileOut);
+      }
+    } else {
+      png = out.toByteArray();
+    }
+    decoded = new SoftReference<>(raster);
+    raster = null;
+  }
+
+  /** Called when the image leaves the history for good. */
+  void discard() {
+    if (file != null) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ioe) {
+        // deleteOnExit will have another go
+      }
+      file = null;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package annotationtool.canvas;
+
+import annotationtool.metrics.Metrics;
+import java.awt.BasicStroke;
+import java.awt.Stroke;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+/**
+ * Thins out the points of a freehand stroke. While dragging, samples closer
+ * than {@link #minStep} to the previous point are dropped; when the stroke is
+ * committed the rest are reduced with Ramer-Douglas-Peucker, and optionally
+ * smoothed into quadratic curves. Both thresholds grow with the stroke width,
+ * since a wide pen hides more detail than a thin one.
+ */
+final class StrokeSimplifier {
+
+  private static final boolean CURVES = Boolean.getBoolean("annotate.stroke.curves");
+
+  // running totals over the session, only touched on the EDT
+  private static long samples, afterDecimation, afterSimplification;
+
+  private StrokeSimplifier() {
+  }
+
+  private static float lineWidth(Stroke stroke) {
+    return stroke instanceof BasicStroke bs ? bs.getLineWidth() : 1.0F;
+  }
+
+  /** Samples closer than this to the last kept point are skipped. */
+  static float minStep(Stroke stroke) {
+    return 0.5F + lineWidth(stroke) / 20.0F;
+  }
+
+  /** Furthest a kept segment may be from any point it replaces. */
+  static float tolerance(Stroke stroke) {
+    return 0.2F + lineWidth(stroke) / 100.0F;
+  }
+
+  /**
+   * Ramer-Douglas-Peucker over {@code count} interleaved x,y pairs. The kept
+   * points are compacted to the front of the array and their number returned.
+   */
+  static int simplify(float[] pts, int count, float tolerance) {
+    if (count < 3) {
+      return count;
+    }
+    boolean[] keep = new boolean[count];
+    keep[0] = keep[count - 1] = true;
+    double tolSq = (double) tolerance * tolerance;
+
+    // explicit stack of [first, last] ranges, so long strokes can't overflow
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = count - 1;
+    while (top > 0) {
+      int last = stack[--top];
+      int first = stack[--top];
+      double ax = pts[2 * first], ay = pts[2 * first + 1];
+      double dx = pts[2 * last] - ax, dy = pts[2 * last + 1] - ay;
+      double lenSq = dx * dx + dy * dy;
+      double worst = -1;
+      int worstIdx = -1;
+      for (int i = first + 1; i < last; i++) {
+        double px = pts[2 * i] - ax, py = pts[2 * i + 1] - ay;
+        double distSq;
+        if (lenSq == 0) {
+          distSq = px * px + py * py;
+        } else {
+          double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lenSq));
+          double ex = px - t * dx, ey = py - t * dy;
+          distSq = ex * ex + ey * ey;
+        }
+        if (distSq > worst) {
+          worst = distSq;
+          worstIdx = i;
+        }
+      }
+      if (worst > tolSq) {
+        keep[worstIdx] = true;
+        if (top + 4 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top++] = first;
+        stack[top++] = worstIdx;
+        stack[top++] = worstIdx;
+        stack[top++] = last;
+      }
+    }
+
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      if (keep[i]) {
+        pts[2 * kept] = pts[2 * i];
+        pts[2 * kept + 1] = pts[2 * i + 1];
+        kept++;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Builds the path for {@code count} interleaved points, as a polyline or,
+   * if annotate.stroke.curves is set, as quadratic curves through the
+   * midpoints of the polyline's segments.
+   */
+  static PackedPath toPath(float[] pts, int count) {
+    if (!CURVES || count <= 2) {
+      return new PackedPath(Arrays.copyOf(pts, 2 * count), null);
+    }
+    // moveTo, a quadTo for each interior point, then a lineTo to the end
+    float[] coords = new float[2 + 4 * (count - 2) + 2];
+    byte[] types = new byte[count];
+    coords[0] = pts[0];
+    coords[1] = pts[1];
+    types[0] = PathIterator.SEG_MOVETO;
+    int c = 2;
+    for (int i = 1; i < count - 1; i++) {
+      coords[c++] = pts[2 * i];
+      coords[c++] = pts[2 * i + 1];
+      coords[c++] = (pts[2 * i] + pts[2 * i + 2]) / 2;
+      coords[c++] = (pts[2 * i + 1] + pts[2 * i + 3]) / 2;
+      types[i] = PathIterator.SEG_QUADTO;
+    }
+    coords[c++] = pts[2 * count - 2];
+    coords[c] = pts[2 * count - 1];
+    types[count - 1] = PathIterator.SEG_LINETO;
+    return new PackedPath(coords, types);
+  }
+
+  static void record(int sampled, int decimated, int simplified) {
+    samples += sampled;
+    afterDecimation += decimated;
+    afterSimplification += simplified;
+    if (Metrics.ENABLED) {
+      Metrics.log(String.format(
+          "stroke: %d samples, %d after decimation, %d after simplification; %s",
+          sampled, decimated, simplified, stats()));
+    }
+  }
+
+  static String stats() {
+    double ratio = afterSimplification == 0 ? 1 : (double) samples / afterSimplification;
+    return String.format("session: %d samples kept as %d points (%.1fx reduction)",
+        samples, afterSimplification, ratio);
+  }
+}
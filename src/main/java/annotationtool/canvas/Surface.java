@@ -0,0 +1,129 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * Something the size of the canvas that the drawing is kept in: either
+ * {@link TiledSurface}, which only holds pixels where something was drawn, or
+ * an {@link ImageSurface} over a single image such as a {@code VolatileImage}.
+ * The engine keeps its drawing in a {@link LayeredSurface} made of those.
+ * <p>
+ * All drawing goes through {@link #draw} with the area it can reach, so a
+ * surface only has to touch the parts of itself under that area, and it
+ * remembers those parts until {@link #takeDirty} is called.
+ */
+public abstract class Surface {
+
+  final int width, height;
+
+  Surface(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  public final int width() {
+    return width;
+  }
+
+  public final int height() {
+    return height;
+  }
+
+  final Rectangle bounds() {
+    return new Rectangle(0, 0, width, height);
+  }
+
+  /**
+   * Copies the pixels in {@code area} to the same place in {@code g},
+   * replacing what was there.
+   */
+  public abstract void paintTo(Graphics2D g, Rectangle area);
+
+  /** Like {@link #paintTo}, but over what is in {@code g} instead of replacing it. */
+  abstract void paintOver(Graphics2D g, Rectangle area);
+
+  /** A copy of the whole surface as an ordinary image. */
+  public BufferedImage toImage() {
+    BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = bi.createGraphics();
+    paintTo(g, bounds());
+    g.dispose();
+    return bi;
+  }
+
+  /**
+   * Calls {@code painter} for each part of the surface under {@code area}
+   * (everything if null) with graphics in canvas coordinates, clipped to
+   * that part, antialiased and with the {@link AlphaComposite#Src} composite
+   * the history is drawn with. The painter must not draw outside the area.
+   */
+  abstract void draw(Rectangle area, Consumer<Graphics2D> painter);
+
+  /**
+   * Draws a stroke or image entry, clipped to {@code area}. {@code fresh}
+   * says the entry has just been committed or redone, so it is likely to be
+   * replayed and is worth preparing for that.
+   */
+  void drawEntry(ShapeDef s, Rectangle area, boolean fresh) {
+    draw(area, s::draw);
+  }
+
+  /** Draws the entries in order, the same as calling {@link ShapeDef#drawOn} on each. */
+  final void drawAll(ShapeDef[] shapes) {
+    drawAll(shapes, null);
+  }
+
+  /** Draws the entries in order, but only inside {@code area} (everywhere if null). */
+  void drawAll(ShapeDef[] shapes, Rectangle area) {
+    for (ShapeDef s : shapes) {
+      s.drawOn(this, area);
+    }
+  }
+
+  /** Covers the whole surface with {@code paint}. */
+  abstract void fill(Paint paint);
+
+  /** Covers {@code area} with {@code paint}. */
+  void fill(Paint paint, Rectangle area) {
+    draw(area, g -> {
+      g.setPaint(paint);
+      g.fill(area);
+    });
+  }
+
+  /**
+   * The part of the surface that entries in {@code layer} are drawn on, for
+   * redrawing after only those changed: for a surface without layers, all
+   * of it.
+   */
+  Surface part(Layer layer) {
+    return this;
+  }
+
+  /** Makes this surface look the same as {@code src}. */
+  abstract void copyFrom(Surface src);
+
+  /** Makes the pixels in {@code area} look the same as in {@code src}. */
+  abstract void copyFrom(Surface src, Rectangle area);
+
+  /**
+   * A copy of the surface as it is now that later drawing on this one won't
+   * change. {@code reuse} is an earlier snapshot that is no longer needed,
+   * or null.
+   */
+  abstract Surface snapshot(Surface reuse);
+
+  /**
+   * The area changed since the last call, or null if nothing was. It may be
+   * larger than what actually changed, but never smaller.
+   */
+  abstract Rectangle takeDirty();
+
+  /** Rough number of heap bytes held by the surface's pixels. */
+  abstract long heapBytes();
+}
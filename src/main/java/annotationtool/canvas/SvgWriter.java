@@ -0,0 +1,286 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes one page of a {@link VectorExport} as SVG. Runs of strokes with the
+ * same pen and paint share a group that carries the style, so each stroke
+ * is just its path; pictures are embedded as PNG the first time they appear
+ * and referred to after that. Strokes in a colour that isn't opaque are drawn
+ * opaque inside a group that carries the alpha, so, as on screen, where they
+ * cross each other they don't build up.
+ * <p>
+ * Strokes that erase are written as masks: what was drawn on a layer between
+ * two runs of them goes in a group masked by every run after it. Each run's
+ * strokes are defined once, where the run was, and the masks use them by
+ * reference, so groups are never nested more than a few deep however often
+ * the layer is erased.
+ */
+final class SvgWriter {
+
+  private final VectorExport export;
+  private final OutputStream raw;
+  private final Writer out;
+  private final StringBuilder sb = new StringBuilder(4096);
+  private final float[] coords = new float[6];
+  private final Map<BufferedImage, String> written = new IdentityHashMap<>();
+  private int imageCount;
+  private int maskCount;
+  // the style of the group that is open, if one is, and the colour of the
+  // translucent group around it
+  private Stroke groupStroke;
+  private Paint groupPaint;
+  private Color groupTranslucent;
+
+  SvgWriter(VectorExport export, OutputStream out) {
+    this.export = export;
+    this.raw = out;
+    this.out = new BufferedWriter(new OutputStreamWriter(VectorExport.leaveOpen(out),
+        StandardCharsets.UTF_8), 64 * 1024);
+  }
+
+  void write(VectorExport.PageContent page) throws IOException {
+    int w = export.width(), h = export.height();
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<svg xmlns=\"http://www.w3.org/2000/svg\""
+        + " xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\"");
+    out.write(" width=\"" + w + "\" height=\"" + h + "\" viewBox=\"0 0 " + w + " " + h + "\">\n");
+    Color background = VectorExport.color(page.background());
+    for (Layer layer : Layer.values()) {
+      ShapeDef[] shapes = page.layers()[layer.ordinal()];
+      List<List<ShapeDef>> erasing = VectorExport.erasing(shapes);
+      if (erasing.size() > VectorExport.MASKED_RUNS) {
+        image(export.flatten(page, layer), false);
+        continue;
+      }
+      int first = maskCount + 1, run = 0;
+      maskCount += erasing.size();
+      if (!erasing.isEmpty()) {
+        out.write("<g mask=\"url(#erase" + first + ")\">\n");
+      }
+      if (layer == Layer.BACKGROUND && background.getAlpha() > 0) {
+        sb.setLength(0);
+        sb.append("<rect width=\"100%\" height=\"100%\"");
+        paint(" fill", background);
+        sb.append("/>\n");
+        out.append(sb);
+      }
+      if (page.base() != null) {
+        image(page.base().part(layer).toImage(), false);
+      }
+      for (int i = 0; i < shapes.length; i++) {
+        ShapeDef s = shapes[i];
+        if (s.img() != null) {
+          endGroup();
+          image(export.image(s.img()), true);
+        } else if (Layer.erases(s)) {
+          List<ShapeDef> strokes = erasing.get(run);
+          mask(first + run++, maskCount, strokes);
+          i += strokes.size() - 1;
+        } else {
+          stroke(s, s.paint());
+        }
+      }
+      endGroup();
+    }
+    out.write("</svg>\n");
+    out.close();
+  }
+
+  private void stroke(ShapeDef s, Paint paint) throws IOException {
+    Color color = VectorExport.color(paint);
+    Color translucent = color.getAlpha() < 255 ? color : null;
+    if (!Objects.equals(translucent, groupTranslucent)) {
+      endGroup();
+      if (translucent != null) {
+        sb.setLength(0);
+        VectorExport.fraction(sb.append("<g opacity=\""), translucent.getAlpha() / 255.0)
+            .append("\">\n");
+        out.append(sb);
+        groupTranslucent = translucent;
+      }
+    }
+    if (s.stroke() instanceof BasicStroke) {
+      if (s.stroke() != groupStroke || paint != groupPaint) {
+        endStyle();
+        startGroup(s.stroke(), paint);
+      }
+      sb.setLength(0);
+      sb.append("<path d=\"");
+      path(s.shape().getPathIterator(null));
+      sb.append("\"/>\n");
+      out.append(sb);
+    } else {
+      // a pen SVG can't describe is drawn as its outline
+      endStyle();
+      sb.setLength(0);
+      sb.append("<path");
+      paint(" fill", opaque(color));
+      sb.append(" d=\"");
+      path(s.stroke().createStrokedShape(s.shape()).getPathIterator(null));
+      sb.append("\"/>\n");
+      out.append(sb);
+    }
+  }
+
+  // ends the group the mask is for, defines the run's strokes in black,
+  // and writes the mask: white where what was drawn shows, and the strokes
+  // of this run and the ones after it, up to the layer's last, on top; then
+  // starts the group for what comes before the next run
+  private void mask(int id, int last, List<ShapeDef> run) throws IOException {
+    int w = export.width(), h = export.height();
+    endGroup();
+    out.write("</g>\n<defs>\n<g id=\"erasing" + id + "\">\n");
+    for (ShapeDef s : run) {
+      stroke(s, Color.BLACK);
+    }
+    endGroup();
+    out.write("</g>\n<mask id=\"erase" + id + "\" maskUnits=\"userSpaceOnUse\" x=\"0\" y=\"0\""
+        + " width=\"" + w + "\" height=\"" + h + "\">\n"
+        + "<rect width=\"" + w + "\" height=\"" + h + "\" fill=\"#ffffff\"/>\n");
+    for (int i = id; i <= last; i++) {
+      out.write("<use xlink:href=\"#erasing" + i + "\"/>\n");
+    }
+    out.write("</mask>\n</defs>\n");
+    if (id < last) {
+      out.write("<g mask=\"url(#erase" + (id + 1) + ")\">\n");
+    }
+  }
+
+  private void startGroup(Stroke stroke, Paint paint) throws IOException {
+    BasicStroke bs = (BasicStroke) stroke;
+    sb.setLength(0);
+    sb.append("<g fill=\"none\"");
+    paint(" stroke", opaque(VectorExport.color(paint)));
+    VectorExport.number(sb.append(" stroke-width=\""), bs.getLineWidth()).append('"');
+    switch (bs.getEndCap()) {
+      case BasicStroke.CAP_ROUND -> sb.append(" stroke-linecap=\"round\"");
+      case BasicStroke.CAP_SQUARE -> sb.append(" stroke-linecap=\"square\"");
+      default -> {
+      }
+    }
+    switch (bs.getLineJoin()) {
+      case BasicStroke.JOIN_ROUND -> sb.append(" stroke-linejoin=\"round\"");
+      case BasicStroke.JOIN_BEVEL -> sb.append(" stroke-linejoin=\"bevel\"");
+      default -> VectorExport.number(sb.append(" stroke-miterlimit=\""), bs.getMiterLimit())
+          .append('"');
+    }
+    float[] dash = bs.getDashArray();
+    if (dash != null) {
+      sb.append(" stroke-dasharray=\"");
+      for (int i = 0; i < dash.length; i++) {
+        VectorExport.number(i > 0 ? sb.append(' ') : sb, dash[i]);
+      }
+      VectorExport.number(sb.append("\" stroke-dashoffset=\""), bs.getDashPhase()).append('"');
+    }
+    sb.append(">\n");
+    out.append(sb);
+    groupStroke = stroke;
+    groupPaint = paint;
+  }
+
+  // ends the group that is open and the translucent group around it
+  private void endGroup() throws IOException {
+    endStyle();
+    if (groupTranslucent != null) {
+      out.write("</g>\n");
+      groupTranslucent = null;
+    }
+  }
+
+  private void endStyle() throws IOException {
+    if (groupStroke != null) {
+      out.write("</g>\n");
+      groupStroke = null;
+      groupPaint = null;
+    }
+  }
+
+  // the colour without its alpha, when a translucent group carries that
+  private Color opaque(Color c) {
+    return groupTranslucent != null ? new Color(c.getRGB() & 0xFFFFFF) : c;
+  }
+
+  // appends an attribute pair for the colour and, if it isn't opaque, its alpha
+  private void paint(String attribute, Color c) {
+    sb.append(attribute).append("=\"#");
+    int rgb = c.getRGB() & 0xFFFFFF;
+    for (int shift = 20; shift >= 0; shift -= 4) {
+      sb.append(Character.forDigit((rgb >> shift) & 0xF, 16));
+    }
+    sb.append('"');
+    if (c.getAlpha() < 255) {
+      VectorExport.fraction(sb.append(attribute).append("-opacity=\""), c.getAlpha() / 255.0)
+          .append('"');
+    }
+  }
+
+  // appends path data, leaving out repeated commands
+  private void path(PathIterator it) {
+    int last = -1;
+    for (; !it.isDone(); it.next()) {
+      int type = it.currentSegment(coords);
+      int points = switch (type) {
+        case PathIterator.SEG_MOVETO, PathIterator.SEG_LINETO -> 1;
+        case PathIterator.SEG_QUADTO -> 2;
+        case PathIterator.SEG_CUBICTO -> 3;
+        default -> 0;
+      };
+      if (type != last || type == PathIterator.SEG_MOVETO || type == PathIterator.SEG_CLOSE) {
+        if (last >= 0) {
+          sb.append(' ');
+        }
+        sb.append(switch (type) {
+          case PathIterator.SEG_MOVETO -> 'M';
+          case PathIterator.SEG_LINETO -> 'L';
+          case PathIterator.SEG_QUADTO -> 'Q';
+          case PathIterator.SEG_CUBICTO -> 'C';
+          default -> 'Z';
+        });
+      } else {
+        sb.append(' ');
+      }
+      for (int i = 0; i < 2 * points; i++) {
+        VectorExport.number(i > 0 ? sb.append(' ') : sb, coords[i]);
+      }
+      last = type;
+    }
+  }
+
+  // the picture at the top left, as a PNG the first time and a reference after
+  private void image(BufferedImage image, boolean shared) throws IOException {
+    String id = written.get(image);
+    if (id != null) {
+      out.write("<use xlink:href=\"#" + id + "\"/>\n");
+      return;
+    }
+    id = "image" + ++imageCount;
+    if (shared) {
+      written.put(image, id);
+    }
+    out.write("<image id=\"" + id + "\" width=\"" + image.getWidth()
+        + "\" height=\"" + image.getHeight() + "\" xlink:href=\"data:image/png;base64,");
+    out.flush();
+    try (OutputStream base64 = Base64.getEncoder().wrap(VectorExport.leaveOpen(raw))) {
+      ImageIO.write(image, "png", base64);
+    }
+    out.write("\"/>\n");
+  }
+}
@@ -0,0 +1,447 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * A surface split into square tiles (256 pixels unless
+ * {@code annotate.tilesize} says otherwise) which are only allocated when
+ * something is drawn on them. A missing tile is entirely the fill colour, so
+ * a canvas spanning several monitors costs nothing where nobody has drawn,
+ * and a clear to a plain colour just drops every tile.
+ * <p>
+ * Copies of a surface share its tiles, and whichever side draws on a shared
+ * tile first takes its own copy of it. That makes snapshots for checkpoints,
+ * and bringing the scratch surface up to date with the main one, cost a
+ * pass over the tile array instead of copying every pixel.
+ * <p>
+ * Tiles are separate images, so long replays draw them in parallel: each
+ * tile is a fork/join task that draws, in history order, only the entries
+ * whose bounds reach it. Every pixel still sees the same operations in the
+ * same order, so the result is identical to drawing one entry at a time.
+ * Strokes that have a {@link Sprite} are blended from it rather than drawn.
+ */
+public final class TiledSurface extends Surface {
+
+  private static final int DEFAULT_TILE_SIZE = Integer.getInteger("annotate.tilesize", 256);
+  private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+  // fewest entries worth replaying in parallel, 0 for never
+  private static final int PARALLEL_REPLAY = Integer.getInteger("annotate.replay.parallel", 32);
+
+  private final int tileSize, cols, rows;
+  private final BufferedImage[] tiles; // null where every pixel is the fill colour
+  // tiles that some other surface may also hold, so must be copied before drawing
+  private final boolean[] shared;
+  private final BitSet dirty;
+  private Color fill = TRANSPARENT;
+
+  public TiledSurface(int width, int height) {
+    this(width, height, DEFAULT_TILE_SIZE);
+  }
+
+  TiledSurface(int width, int height, int tileSize) {
+    super(width, height);
+    this.tileSize = tileSize;
+    cols = (width + tileSize - 1) / tileSize;
+    rows = (height + tileSize - 1) / tileSize;
+    tiles = new BufferedImage[cols * rows];
+    shared = new boolean[tiles.length];
+    dirty = new BitSet(tiles.length);
+  }
+
+  /** The number of tiles that hold pixels. */
+  int allocatedTiles() {
+    int n = 0;
+    for (BufferedImage t : tiles) {
+      if (t != null) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private Rectangle tileBounds(int index) {
+    int x = (index % cols) * tileSize, y = (index / cols) * tileSize;
+    return new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+  }
+
+  // calls action with the index of every tile that area overlaps
+  private void forTiles(Rectangle area, TileAction action) {
+    Rectangle r = area == null ? bounds() : area.intersection(bounds());
+    if (r.isEmpty()) {
+      return;
+    }
+    int c0 = r.x / tileSize, c1 = (r.x + r.width - 1) / tileSize;
+    int r0 = r.y / tileSize, r1 = (r.y + r.height - 1) / tileSize;
+    for (int row = r0; row <= r1; row++) {
+      for (int col = c0; col <= c1; col++) {
+        action.apply(row * cols + col);
+      }
+    }
+  }
+
+  private interface TileAction {
+    void apply(int index);
+  }
+
+  // the tile, made and unshared so that it can be drawn on
+  private BufferedImage writable(int index) {
+    dirty.set(index);
+    return own(index);
+  }
+
+  // writable() without marking the tile dirty, so that it is safe to call
+  // from several threads as long as each has different tiles
+  private BufferedImage own(int index) {
+    BufferedImage t = tiles[index];
+    if (t == null) {
+      Rectangle b = tileBounds(index);
+      t = new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB);
+      if (fill.getAlpha() != 0) {
+        Graphics2D g = t.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(fill);
+        g.fillRect(0, 0, b.width, b.height);
+        g.dispose();
+      }
+    } else if (shared[index]) {
+      BufferedImage copy = new BufferedImage(t.getWidth(), t.getHeight(), BufferedImage.TYPE_INT_ARGB);
+      t.copyData(copy.getRaster());
+      t = copy;
+    }
+    tiles[index] = t;
+    shared[index] = false;
+    return t;
+  }
+
+  @Override
+  public void paintTo(Graphics2D g, Rectangle area) {
+    paint(g, area, AlphaComposite.Src);
+  }
+
+  @Override
+  void paintOver(Graphics2D g, Rectangle area) {
+    paint(g, area, AlphaComposite.SrcOver);
+  }
+
+  private void paint(Graphics2D g, Rectangle area, AlphaComposite how) {
+    Rectangle r = area.intersection(bounds());
+    Composite composite = g.getComposite();
+    Paint paint = g.getPaint();
+    g.setComposite(how);
+    boolean skipEmpty = how == AlphaComposite.SrcOver && fill.getAlpha() == 0;
+    forTiles(r, i -> {
+      Rectangle b = tileBounds(i).intersection(r);
+      BufferedImage t = tiles[i];
+      if (t == null) {
+        if (!skipEmpty) {
+          g.setColor(fill);
+          g.fillRect(b.x, b.y, b.width, b.height);
+        }
+      } else {
+        int ox = (i % cols) * tileSize, oy = (i / cols) * tileSize;
+        g.drawImage(t, b.x, b.y, b.x + b.width, b.y + b.height,
+            b.x - ox, b.y - oy, b.x - ox + b.width, b.y - oy + b.height, null);
+      }
+    });
+    g.setPaint(paint);
+    g.setComposite(composite);
+  }
+
+  @Override
+  void draw(Rectangle area, Consumer<Graphics2D> painter) {
+    forTiles(area, i -> {
+      Graphics2D g = writable(i).createGraphics();
+      g.setRenderingHint(
+          RenderingHints.KEY_ANTIALIASING,
+          RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setComposite(AlphaComposite.Src);
+      g.translate(-(i % cols) * tileSize, -(i / cols) * tileSize);
+      // the clip bounds tell the painter which part it is drawing
+      Rectangle part = tileBounds(i);
+      g.clip(area != null ? area.intersection(part) : part);
+      painter.accept(g);
+      g.dispose();
+    });
+  }
+
+  @Override
+  void drawEntry(ShapeDef s, Rectangle area, boolean fresh) {
+    Sprite sprite = fresh ? Sprite.make(s) : Sprite.cached(s);
+    if (sprite == null) {
+      super.drawEntry(s, area, fresh);
+      return;
+    }
+    forTiles(area, i ->
+        sprite.drawOn(writable(i), (i % cols) * tileSize, (i / cols) * tileSize, area));
+  }
+
+  @Override
+  void drawAll(ShapeDef[] shapes, Rectangle area) {
+    // clears cover every tile, so only the runs between them can be split up
+    int start = 0;
+    for (int i = 0; i <= shapes.length; i++) {
+      if (i == shapes.length || shapes[i].isClear()) {
+        drawRun(shapes, start, i, area);
+        if (i < shapes.length) {
+          shapes[i].drawOn(this, area);
+        }
+        start = i + 1;
+      }
+    }
+  }
+
+  // draws shapes[from, to), which contains no clears
+  private void drawRun(ShapeDef[] shapes, int from, int to, Rectangle area) {
+    int n = to - from;
+    if (PARALLEL_REPLAY <= 0 || n < PARALLEL_REPLAY) {
+      for (int i = from; i < to; i++) {
+        shapes[i].drawOn(this, area);
+      }
+      return;
+    }
+
+    // sort the entries into the tiles they reach, keeping history order
+    Rectangle[] bounds = new Rectangle[n];
+    BufferedImage[] images = new BufferedImage[n];
+    Sprite[] sprites = new Sprite[n];
+    int[] counts = new int[tiles.length + 1];
+    for (int k = 0; k < n; k++) {
+      ShapeDef s = shapes[from + k];
+      if (s.isErase()) {
+        bounds[k] = new Rectangle(); // draws nothing
+        continue;
+      }
+      bounds[k] = area == null ? s.bounds() : s.bounds().intersection(area);
+      if (s.img() != null) {
+        // decode spilled images up front, and hold on to them until done
+        images[k] = s.img().get();
+      } else {
+        sprites[k] = Sprite.cached(s);
+      }
+      forTiles(bounds[k], i -> counts[i + 1]++);
+    }
+    for (int i = 0; i < tiles.length; i++) {
+      counts[i + 1] += counts[i];
+    }
+    int[] entries = new int[counts[tiles.length]];
+    int[] next = Arrays.copyOf(counts, tiles.length);
+    for (int k = 0; k < n; k++) {
+      int entry = k;
+      forTiles(bounds[k], i -> entries[next[i]++] = entry);
+    }
+    int[] work = new int[tiles.length];
+    int tasks = 0;
+    for (int i = 0; i < tiles.length; i++) {
+      if (counts[i + 1] > counts[i]) {
+        dirty.set(i);
+        work[tasks++] = i;
+      }
+    }
+
+    // a parallel stream shares the tiles out over the common fork/join pool
+    IntStream.of(work).limit(tasks).parallel().forEach(tile -> {
+      BufferedImage t = own(tile);
+      int ox = (tile % cols) * tileSize, oy = (tile / cols) * tileSize;
+      Graphics2D g = t.createGraphics();
+      g.setRenderingHint(
+          RenderingHints.KEY_ANTIALIASING,
+          RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setComposite(AlphaComposite.Src);
+      g.translate(-ox, -oy);
+      for (int e = counts[tile]; e < counts[tile + 1]; e++) {
+        int k = entries[e];
+        if (sprites[k] != null) {
+          sprites[k].drawOn(t, ox, oy, bounds[k]);
+        } else {
+          g.setClip(bounds[k]); // as draw() would have clipped it
+          shapes[from + k].draw(g);
+        }
+      }
+      g.dispose();
+    });
+  }
+
+  @Override
+  void fill(Paint paint) {
+    if (paint instanceof Color c) {
+      Arrays.fill(tiles, null);
+      Arrays.fill(shared, false);
+      fill = c;
+      dirty.set(0, tiles.length);
+    } else {
+      draw(null, g -> {
+        g.setPaint(paint);
+        g.fillRect(0, 0, width, height);
+      });
+    }
+  }
+
+  private boolean sameLayout(Surface src) {
+    return src instanceof TiledSurface ts && ts.width == width && ts.height == height
+        && ts.tileSize == tileSize;
+  }
+
+  @Override
+  void copyFrom(Surface src) {
+    if (sameLayout(src)) {
+      TiledSurface ts = (TiledSurface) src;
+      boolean fillChanged = !fill.equals(ts.fill);
+      fill = ts.fill;
+      for (int i = 0; i < tiles.length; i++) {
+        share(ts, i, fillChanged);
+      }
+    } else {
+      copyFrom(src, bounds());
+    }
+  }
+
+  @Override
+  void copyFrom(Surface src, Rectangle area) {
+    if (sameLayout(src) && ((TiledSurface) src).fill.equals(fill)) {
+      // tiles wholly inside the area are shared, the rest copied in part
+      TiledSurface ts = (TiledSurface) src;
+      Rectangle r = area.intersection(bounds());
+      forTiles(r, i -> {
+        Rectangle b = tileBounds(i);
+        if (r.contains(b)) {
+          share(ts, i, false);
+        } else if (tiles[i] != ts.tiles[i]) {
+          Rectangle part = b.intersection(r);
+          draw(part, g -> ts.paintTo(g, part));
+        }
+      });
+    } else {
+      draw(area, g -> src.paintTo(g, area));
+    }
+  }
+
+  private void share(TiledSurface src, int index, boolean fillChanged) {
+    BufferedImage t = src.tiles[index];
+    if (tiles[index] != t || (t == null && fillChanged)) {
+      dirty.set(index);
+    }
+    tiles[index] = t;
+    shared[index] = t != null;
+    src.shared[index] |= t != null;
+  }
+
+  @Override
+  Surface snapshot(Surface reuse) {
+    TiledSurface copy = new TiledSurface(width, height, tileSize);
+    copy.copyFrom(this);
+    copy.dirty.clear();
+    return copy;
+  }
+
+  @Override
+  Rectangle takeDirty() {
+    Rectangle r = null;
+    for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+      r = r == null ? tileBounds(i) : r.union(tileBounds(i));
+    }
+    dirty.clear();
+    return r;
+  }
+
+  @Override
+  long heapBytes() {
+    long bytes = 64 + 8L * tiles.length;
+    for (BufferedImage t : tiles) {
+      if (t != null) {
+        bytes += 4L * t.getWidth() * t.getHeight();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes the surface to a file as raw pixels, only for the tiles that hold
+   * any. Reading that back with {@link #read} is little more than a copy,
+   * where a compressed image would have to be decoded.
+   */
+  void write(Path file) throws IOException {
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(out);
+    }
+  }
+
+  /** Like {@link #write(Path)}, at the channel's position. */
+  void write(FileChannel out) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(4 + 4 * tileSize * tileSize)
+        .order(ByteOrder.nativeOrder());
+    buf.putInt(width).putInt(height).putInt(tileSize).putInt(fill.getRGB())
+        .putInt(allocatedTiles());
+    writeFully(out, buf.flip());
+    int[] pixels = new int[tileSize * tileSize];
+    for (int i = 0; i < tiles.length; i++) {
+      BufferedImage t = tiles[i];
+      if (t != null) {
+        int n = t.getWidth() * t.getHeight();
+        t.getRaster().getDataElements(0, 0, t.getWidth(), t.getHeight(), pixels);
+        buf.clear();
+        buf.putInt(i);
+        buf.asIntBuffer().put(pixels, 0, n);
+        writeFully(out, buf.position(4 + 4 * n).flip());
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+  }
+
+  /** A surface as {@link #write} left it. */
+  static TiledSurface read(Path file) throws IOException {
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      return read(map(in), file);
+    }
+  }
+
+  /** The whole file, for {@link #read(ByteBuffer, Path)}. */
+  static ByteBuffer map(FileChannel in) throws IOException {
+    return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.nativeOrder());
+  }
+
+  /** Reads a surface written to {@code file} from {@code buf}'s position on. */
+  static TiledSurface read(ByteBuffer buf, Path file) throws IOException {
+    try {
+      TiledSurface s = new TiledSurface(buf.getInt(), buf.getInt(), buf.getInt());
+      s.fill = new Color(buf.getInt(), true);
+      int[] pixels = new int[s.tileSize * s.tileSize];
+      for (int count = buf.getInt(); count > 0; count--) {
+        int i = buf.getInt();
+        Rectangle b = s.tileBounds(i);
+        int n = b.width * b.height;
+        buf.asIntBuffer().get(pixels, 0, n);
+        buf.position(buf.position() + 4 * n);
+        BufferedImage t = new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB);
+        t.getRaster().setDataElements(0, 0, b.width, b.height, pixels);
+        s.tiles[i] = t;
+      }
+      return s;
+    } catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+      throw new IOException("Corrupt page file " + file, ex);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package annotationtool.canvas;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.List;
+
+/**
+ * The pens, highlighters and pen sizes the tool offers, so that anything
+ * drawing without the tool window uses exactly the same ones.
+ */
+public final class Tools {
+
+  public record NamedStroke(String name, BasicStroke stroke) {
+  }
+
+  private static final List<Color> penColors = List.of(
+      new Color(255, 0, 0, 255),
+      new Color(255, 128, 0, 255),
+      new Color(255, 255, 0, 255),
+      new Color(0, 255, 0, 255),
+      new Color(0, 0, 255, 255),
+      new Color(255, 0, 255, 255),
+      new Color(0, 0, 0, 255),
+      new Color(255, 255, 255, 255));
+
+  private static final List<Color> highlighterColors = List.of(
+      new Color(255, 0, 0, 128),
+      new Color(255, 128, 0, 128),
+      new Color(255, 255, 0, 128),
+      new Color(0, 255, 0, 128),
+      new Color(0, 0, 255, 128),
+      new Color(0, 0, 0, 0));
+
+  private static final List<NamedStroke> strokes = List.of(
+      new NamedStroke("Thin", new BasicStroke(3, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
+      new NamedStroke("Medium", new BasicStroke(12, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
+      new NamedStroke("Thick", new BasicStroke(30, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)),
+      new NamedStroke("Huge", new BasicStroke(70, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)));
+
+  private Tools() {
+  }
+
+  public static List<Color> penColors() {
+    return penColors;
+  }
+
+  public static List<Color> highlighterColors() {
+    return highlighterColors;
+  }
+
+  public static List<NamedStroke> strokes() {
+    return strokes;
+  }
+
+  public static BasicStroke stroke(String name) {
+    for (NamedStroke ns : strokes) {
+      if (ns.name().equals(name)) {
+        return ns.stroke();
+      }
+    }
+    throw new IllegalArgumentException("No stroke called " + name);
+  }
+}
@@ -0,0 +1,204 @@
+package annotationtool.canvas;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.image.BufferedImage;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The drawing as its history describes it, ready to be written out as SVG
+ * (one page) or PDF (every page) without drawing it into pixels first.
+ * Strokes become paths with their pen and paint; a loaded picture, and the
+ * flattened bottom of a long history, become embedded images, each written
+ * once however many times it is used. Each {@link Layer} is written over
+ * the one below, as it is shown, and a stroke that erases becomes a mask
+ * over what was drawn on each layer before it. A layer erased in more than
+ * {@link #MASKED_RUNS} places is written as a picture instead.
+ * <p>
+ * On screen a translucent stroke replaces what it covers on its layer
+ * rather than blending with it. Strokes after one another in the same
+ * colour are written as a group with the alpha applied once, which looks
+ * the same; where strokes in different translucent colours cross, though,
+ * the export blends them.
+ * <p>
+ * Taking an export is quick and must happen on the thread that uses the
+ * engine; writing it out streams one shape at a time, and can be done on
+ * any thread while drawing carries on.
+ */
+public final class VectorExport {
+
+  // what one page shows, by layer; the pictures are looked up in images
+  record PageContent(Paint background, Surface base, ShapeDef[][] layers) {
+  }
+
+  /**
+   * The most runs of erasing strokes a layer is written with as masks. Each
+   * mask takes in every run after its own, so they grow with the square of
+   * the runs; a layer with more is flattened into a picture.
+   */
+  static final int MASKED_RUNS = 16;
+
+  private final int width, height;
+  private final List<PageContent> pages = new ArrayList<>();
+  private final int current;
+  // the pictures in the shapes, decoded while it is safe to do that
+  private final Map<StoredImage, BufferedImage> images = new IdentityHashMap<>();
+
+  VectorExport(int width, int height, List<History> histories, int current) {
+    this.width = width;
+    this.height = height;
+    this.current = current;
+    for (History history : histories) {
+      History.Visible visible = history.visible();
+      for (ShapeDef[] layer : visible.layers()) {
+        for (ShapeDef s : layer) {
+          if (s.img() != null) {
+            images.computeIfAbsent(s.img(), StoredImage::get);
+          }
+        }
+      }
+      pages.add(new PageContent(visible.background(), visible.base(), visible.layers()));
+    }
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  public int pageCount() {
+    return pages.size();
+  }
+
+  /** The page that was shown when the export was taken. */
+  public int currentPage() {
+    return current;
+  }
+
+  /** Writes page {@code index} as an SVG document. {@code out} is left open. */
+  public void writeSvg(OutputStream out, int index) throws IOException {
+    new SvgWriter(this, out).write(pages.get(index));
+  }
+
+  /** Writes every page into a PDF document. {@code out} is left open. */
+  public void writePdf(OutputStream out) throws IOException {
+    new PdfWriter(this, out).write(pages);
+  }
+
+  BufferedImage image(StoredImage img) {
+    return images.get(img);
+  }
+
+  /**
+   * The runs of strokes in {@code shapes}, one layer's, that erase. Each run
+   * leaves what was drawn before it transparent where it goes, which is
+   * written as a mask of all the runs from there on over what comes before.
+   */
+  static List<List<ShapeDef>> erasing(ShapeDef[] shapes) {
+    List<List<ShapeDef>> runs = new ArrayList<>();
+    List<ShapeDef> run = null;
+    for (ShapeDef s : shapes) {
+      if (!Layer.erases(s)) {
+        run = null;
+      } else {
+        if (run == null) {
+          run = new ArrayList<>();
+          runs.add(run);
+        }
+        run.add(s);
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * The layer as it is shown, over the page background for the bottom one,
+   * for writing as a picture in place of its shapes.
+   */
+  BufferedImage flatten(PageContent page, Layer layer) {
+    TiledSurface surface = new TiledSurface(width, height);
+    Color background = color(page.background());
+    if (layer == Layer.BACKGROUND && background.getAlpha() > 0) {
+      surface.fill(background);
+    }
+    if (page.base() != null) {
+      BufferedImage base = page.base().part(layer).toImage();
+      surface.draw(null, g -> {
+        g.setComposite(AlphaComposite.SrcOver);
+        g.drawImage(base, 0, 0, null);
+      });
+    }
+    for (ShapeDef s : page.layers()[layer.ordinal()]) {
+      if (s.img() != null) {
+        // the picture decoded when the export was taken
+        BufferedImage image = image(s.img());
+        surface.draw(s.bounds(), g -> g.drawImage(image, 0, 0, null));
+      } else {
+        s.drawOn(surface, null);
+      }
+    }
+    return surface.toImage();
+  }
+
+  /** The paint as a colour; other kinds of paint are written as black. */
+  static Color color(Paint paint) {
+    return paint instanceof Color c ? c : Color.BLACK;
+  }
+
+  /**
+   * Appends {@code value} rounded to hundredths, without trailing zeros,
+   * which is finer than anything drawn with the mouse and much quicker than
+   * going through {@link String#format}.
+   */
+  static StringBuilder number(StringBuilder sb, double value) {
+    return decimal(sb, value, 100);
+  }
+
+  /** Appends a colour component or alpha from 0 to 1, to a thousandth. */
+  static StringBuilder fraction(StringBuilder sb, double value) {
+    return decimal(sb, value, 1000);
+  }
+
+  private static StringBuilder decimal(StringBuilder sb, double value, int scale) {
+    long scaled = Math.round(value * scale);
+    if (scaled < 0) {
+      sb.append('-');
+      scaled = -scaled;
+    }
+    sb.append(scaled / scale);
+    int rest = (int) (scaled % scale);
+    if (rest != 0) {
+      sb.append('.');
+      for (int digit = scale / 10; rest != 0; digit /= 10) {
+        sb.append((char) ('0' + rest / digit));
+        rest %= digit;
+      }
+    }
+    return sb;
+  }
+
+  /** Passes writes through, but only flushes {@code out} when closed. */
+  static OutputStream leaveOpen(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.flush();
+      }
+    };
+  }
+}
@@ -0,0 +1,20 @@
+package annotationtool.metrics;
+
+/**
+ * The size of the drawing history, how often the window was painted and how
+ * a screen recording is going, over JMX.
+ */
+public interface CanvasMXBean {
+
+  int getUndoDepth();
+
+  int getRedoDepth();
+
+  long getHistoryHeapBytes();
+
+  long getRepaints();
+
+  long getRecordedFrames();
+
+  long getDroppedFrames();
+}
@@ -0,0 +1,30 @@
+package annotationtool.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/** A JFR event, once a second while recording, with the size of the history. */
+@Name("annotationtool.History")
+@Label("Annotate History")
+@Category("Annotate")
+@Period("1 s")
+@StackTrace(false)
+final class HistoryEvent extends jdk.jfr.Event {
+
+  @Label("Undo Depth")
+  int undoDepth;
+
+  @Label("Redo Depth")
+  int redoDepth;
+
+  @Label("History Heap")
+  @DataAmount
+  long heapBytes;
+
+  @Label("Repaints")
+  long repaints;
+}
@@ -0,0 +1,235 @@
+package annotationtool.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Timings and counts for finding out why drawing feels slow, switched on by
+ * {@code annotate.metrics=true}. When on, timings are kept in
+ * {@link Histogram}s, everything is published as MXBeans under the
+ * {@code annotationtool} domain and as JFR events, the window can show it all
+ * in an overlay, and diagnostic messages are printed. Timings are also sent
+ * as JFR events whenever a recording asks for them, even when the switch is
+ * off. Otherwise every measuring point costs a test of a constant.
+ */
+public final class Metrics {
+
+  public static final boolean ENABLED = Boolean.getBoolean("annotate.metrics");
+
+  /** The things that are timed. */
+  public enum Timer implements TimerMXBean {
+    /** From a mouse event being posted to its stroke being on screen. */
+    INPUT("input to screen"),
+    /** Copying the drawing to the window. */
+    PAINT("paint"),
+    /** Drawing and recording a stroke, clear, picture or erase. */
+    COMMIT("commit"),
+    /** Redrawing from the history, on undo, redo or losing the drawing. */
+    REPLAY("replay"),
+    /** Going from one page to another. */
+    PAGE("page switch"),
+    /** Compressing a frame of a screen recording. */
+    ENCODE("record encode");
+
+    private final String label;
+    private final Histogram histogram = new Histogram();
+
+    Timer(String label) {
+      this.label = label;
+    }
+
+    /** Finishes a timing begun with {@link Metrics#start()}. */
+    public void stop(long start) {
+      if (start != 0) {
+        record(System.nanoTime() - start);
+      }
+    }
+
+    public void record(long nanos) {
+      if (ENABLED) {
+        histogram.record(nanos);
+      }
+      TimingEvent event = new TimingEvent();
+      if (event.isEnabled()) {
+        event.what = label;
+        event.took = nanos;
+        event.commit();
+      }
+    }
+
+    @Override
+    public long getCount() {
+      return histogram.count();
+    }
+
+    @Override
+    public long getMeanMicros() {
+      return histogram.mean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+      return histogram.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getP90Micros() {
+      return histogram.percentile(90) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+      return histogram.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getP999Micros() {
+      return histogram.percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+      return histogram.max() / 1000;
+    }
+
+    @Override
+    public void reset() {
+      histogram.reset();
+    }
+
+    private String summary() {
+      return String.format("%s: %d, p50 %.2f ms, p99 %.2f ms, max %.2f ms", label,
+          histogram.count(), histogram.percentile(50) / 1e6,
+          histogram.percentile(99) / 1e6, histogram.max() / 1e6);
+    }
+  }
+
+  private static volatile int undoDepth, redoDepth;
+  private static volatile long historyBytes;
+  private static volatile long recordedFrames, droppedFrames;
+  private static final LongAdder repaints = new LongAdder();
+
+  static {
+    if (ENABLED) {
+      register();
+    }
+  }
+
+  private Metrics() {
+  }
+
+  /**
+   * The time to pass to {@link Timer#stop} when the thing being timed is
+   * done, or 0 if nothing wants the timing.
+   */
+  public static long start() {
+    return ENABLED || new TimingEvent().isEnabled() ? System.nanoTime() : 0;
+  }
+
+  /** Records the size of the drawing history after it changed. */
+  public static void history(int undo, int redo, long heapBytes) {
+    if (ENABLED) {
+      undoDepth = undo;
+      redoDepth = redo;
+      historyBytes = heapBytes;
+    }
+  }
+
+  /** Records how far the screen recording has got. */
+  public static void recording(long frames, long dropped) {
+    if (ENABLED) {
+      recordedFrames = frames;
+      droppedFrames = dropped;
+    }
+  }
+
+  public static void repainted() {
+    if (ENABLED) {
+      repaints.increment();
+    }
+  }
+
+  /** Prints a diagnostic message if metrics are on. */
+  public static void log(String message) {
+    if (ENABLED) {
+      System.out.println(message);
+    }
+  }
+
+  /** A line for each timer, and one for the history, for showing on screen. */
+  public static List<String> summary() {
+    List<String> lines = new ArrayList<>();
+    if (!ENABLED) {
+      lines.add("Metrics are off, run with -Dannotate.metrics=true");
+      return lines;
+    }
+    for (Timer t : Timer.values()) {
+      lines.add(t.summary());
+    }
+    lines.add(String.format("history: %d undo, %d redo, %d KB; %d repaints",
+        undoDepth, redoDepth, historyBytes / 1024, repaints.sum()));
+    if (recordedFrames > 0) {
+      lines.add(String.format("recording: %d frames, %d dropped", recordedFrames, droppedFrames));
+    }
+    return lines;
+  }
+
+  private static void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (Timer t : Timer.values()) {
+        server.registerMBean(t, new ObjectName("annotationtool:type=Timer,name=" + t.name()));
+      }
+      server.registerMBean(new Canvas(), new ObjectName("annotationtool:type=Canvas"));
+    } catch (JMException ex) {
+      System.err.println("Couldn't publish metrics over JMX: " + ex.getMessage());
+    }
+    FlightRecorder.addPeriodicEvent(HistoryEvent.class, () -> {
+      HistoryEvent event = new HistoryEvent();
+      event.undoDepth = undoDepth;
+      event.redoDepth = redoDepth;
+      event.heapBytes = historyBytes;
+      event.repaints = repaints.sum();
+      event.commit();
+    });
+  }
+
+  private static final class Canvas implements CanvasMXBean {
+
+    @Override
+    public int getUndoDepth() {
+      return undoDepth;
+    }
+
+    @Override
+    public int getRedoDepth() {
+      return redoDepth;
+    }
+
+    @Override
+    public long getHistoryHeapBytes() {
+      return historyBytes;
+    }
+
+    @Override
+    public long getRepaints() {
+      return repaints.sum();
+    }
+
+    @Override
+    public long getRecordedFrames() {
+      return recordedFrames;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+      return droppedFrames;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package annotationtool.metrics;
+
+/** One of the {@link Metrics.Timer}s, in microseconds, over JMX. */
+public interface TimerMXBean {
+
+  long getCount();
+
+  long getMeanMicros();
+
+  long getP50Micros();
+
+  long getP90Micros();
+
+  long getP99Micros();
+
+  long getP999Micros();
+
+  long getMaxMicros();
+
+  void reset();
+}
@@ -0,0 +1,24 @@
+package annotationtool.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** A JFR event for each thing {@link Metrics.Timer} times. */
+@Name("annotationtool.Timing")
+@Label("Annotate Timing")
+@Category("Annotate")
+@Description("Time taken to paint, commit, replay, or get input onto the screen")
+@StackTrace(false)
+final class TimingEvent extends jdk.jfr.Event {
+
+  @Label("What")
+  String what;
+
+  @Label("Took")
+  @Timespan(Timespan.NANOSECONDS)
+  long took;
+}
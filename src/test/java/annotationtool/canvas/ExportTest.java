@@ -0,0 +1,153 @@
+package annotationtool.canvas;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that exports stay within what readers cope with however much of
+ * the drawing has been erased.
+ */
+class ExportTest {
+
+  private static final Pattern FORM = Pattern.compile(
+      "(\\d+) 0 obj\n<< /Type /XObject /Subtype /Form [^\n]*\nstream\n");
+  private static final Pattern DRAWS = Pattern.compile("/F(\\d+) Do");
+
+  // each run of erasing strokes is a mask, none of them nested in another;
+  // nothing else is drawn on the background, so the erasing there is one run
+  @Test
+  void masksAreNotNested() throws Exception {
+    VectorExport export = erasedOften(VectorExport.MASKED_RUNS).vectorExport();
+    String svg = svg(export);
+    assertEquals(2 * VectorExport.MASKED_RUNS + 1, count(svg, "<mask "));
+    assertTrue(depth(svg) <= 6, "SVG elements nested " + depth(svg) + " deep");
+    assertTrue(formDepth(pdf(export)) <= 2, "PDF forms nested too deep");
+  }
+
+  // past that, a layer is written as a picture, but the background isn't
+  @Test
+  void layersErasedOftenAreFlattened() throws Exception {
+    VectorExport export = erasedOften(4 * VectorExport.MASKED_RUNS).vectorExport();
+    String svg = svg(export);
+    assertEquals(1, count(svg, "<mask "));
+    assertTrue(depth(svg) <= 6, "SVG elements nested " + depth(svg) + " deep");
+    assertTrue(formDepth(pdf(export)) <= 2, "PDF forms nested too deep");
+  }
+
+  // highlighter strokes of one colour share their alpha, as on screen,
+  // rather than darkening where they cross
+  @Test
+  void translucentStrokesShareTheirAlpha() throws Exception {
+    CanvasEngine engine = new CanvasEngine(400, 200, Color.WHITE);
+    BasicStroke pen = new BasicStroke(15);
+    Color yellow = new Color(255, 255, 0, 128);
+    engine.commitStroke(pen, yellow, new float[] {20, 20, 380, 180});
+    engine.commitStroke(pen, yellow, new float[] {20, 180, 380, 20});
+    engine.commitStroke(new BasicStroke(5), yellow, new float[] {20, 100, 380, 100});
+    VectorExport export = engine.vectorExport();
+    String svg = svg(export);
+    assertEquals(1, count(svg, "opacity="));
+    assertEquals(2, count(svg, "stroke=\"#ffff00\""));
+    String pdf = pdf(export);
+    assertEquals(1, count(pdf, "/Group << /S /Transparency /CS /DeviceRGB >>"));
+  }
+
+  // ink and highlighter, each crossed out by an eraser stroke of its own
+  private static CanvasEngine erasedOften(int runs) {
+    CanvasEngine engine = new CanvasEngine(400, 200, Color.WHITE);
+    BasicStroke pen = new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    for (int i = 0; i < runs; i++) {
+      float x = 10 + i * 380f / runs;
+      engine.commitStroke(pen, Color.BLUE, new float[] {x, 20, x + 20, 180});
+      engine.commitStroke(pen, new Color(255, 255, 0, 128), new float[] {x + 10, 20, x, 180});
+      engine.commitStroke(pen, new Color(0, 0, 0, 0), new float[] {x - 10, 100, x + 30, 100});
+    }
+    return engine;
+  }
+
+  private static String svg(VectorExport export) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    export.writeSvg(out, export.currentPage());
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private static String pdf(VectorExport export) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    export.writePdf(out);
+    return out.toString(StandardCharsets.ISO_8859_1);
+  }
+
+  private static int count(String text, String part) {
+    int n = 0;
+    for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+      n++;
+    }
+    return n;
+  }
+
+  private static int depth(String xml) throws XMLStreamException {
+    XMLStreamReader reader = XMLInputFactory.newFactory()
+        .createXMLStreamReader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    int depth = 0, deepest = 0;
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamReader.START_ELEMENT -> deepest = Math.max(deepest, ++depth);
+        case XMLStreamReader.END_ELEMENT -> depth--;
+        default -> {
+        }
+      }
+    }
+    return deepest;
+  }
+
+  // how deep forms are drawn inside one another, counting the outermost
+  private static int formDepth(String pdf) throws DataFormatException {
+    Map<Integer, List<Integer>> draws = new HashMap<>();
+    Matcher form = FORM.matcher(pdf);
+    while (form.find()) {
+      int end = pdf.indexOf("\nendstream", form.end());
+      byte[] deflated = pdf.substring(form.end(), end).getBytes(StandardCharsets.ISO_8859_1);
+      Inflater inflater = new Inflater();
+      inflater.setInput(deflated);
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      while (!inflater.finished()) {
+        content.write(buf, 0, inflater.inflate(buf));
+      }
+      inflater.end();
+      draws.put(Integer.parseInt(form.group(1)), DRAWS.matcher(content.toString(
+          StandardCharsets.ISO_8859_1)).results().map(m -> Integer.parseInt(m.group(1))).toList());
+    }
+    int deepest = 0;
+    for (int number : draws.keySet()) {
+      deepest = Math.max(deepest, formDepth(number, draws));
+    }
+    return deepest;
+  }
+
+  private static int formDepth(int number, Map<Integer, List<Integer>> draws) {
+    int inner = 0;
+    for (int drawn : draws.getOrDefault(number, List.of())) {
+      inner = Math.max(inner, formDepth(drawn, draws));
+    }
+    return 1 + inner;
+  }
+}
@@ -0,0 +1,137 @@
+package annotationtool.canvas;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks, without a display, the parts of drawing that are easy to get
+ * wrong and that replays depend on looking the same however they are done.
+ */
+class RenderTest {
+
+  private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+
+  // a transparent stroke erases ink, highlighter and background alike,
+  // and undoing and redoing it puts back exactly what was there
+  @Test
+  void transparentStrokeErasesEveryLayer() {
+    CanvasEngine engine = new CanvasEngine(64, 64, Color.WHITE);
+    engine.commitStroke(new BasicStroke(9), Color.BLUE, new float[] {4, 32, 60, 32});
+    engine.commitStroke(new BasicStroke(15), new Color(255, 255, 0, 128),
+        new float[] {4, 32, 60, 32});
+    BufferedImage before = engine.render();
+    engine.beginStroke(new BasicStroke(15), TRANSPARENT, 32, 4);
+    engine.extendStroke(32, 32);
+    engine.extendStroke(32, 60);
+    engine.endStroke();
+    BufferedImage erased = engine.render();
+    assertEquals(0, erased.getRGB(32, 32), "ink under the eraser");
+    assertEquals(0, erased.getRGB(32, 12), "background under the eraser");
+    assertEquals(before.getRGB(8, 32), erased.getRGB(8, 32), "ink away from the eraser");
+    engine.undo();
+    assertSame(before, engine.render());
+    engine.redo();
+    assertSame(erased, engine.render());
+  }
+
+  // replaying strokes from their sprites gives the same pixels as drawing
+  // them with Java2D, whatever they overlap, so it doesn't matter which
+  // strokes the sprite cache still has
+  @Test
+  void spritesBlendLikeJava2D() {
+    ShapeDef[] shapes = strokes(60, 1);
+    TiledSurface drawn = blank();
+    TiledSurface blended = blank();
+    drawn.drawAll(shapes);
+    try {
+      boolean made = false;
+      for (ShapeDef s : shapes) {
+        made |= Sprite.make(s) != null;
+      }
+      assertTrue(made, "sprites made");
+      blended.drawAll(shapes);
+    } finally {
+      forget(shapes);
+    }
+    assertSame(drawn.toImage(), blended.toImage());
+  }
+
+  // tiles replayed in parallel come out as drawing the entries one after
+  // another does, across clears and with only some of them having sprites
+  @Test
+  void parallelReplayMatchesSequential() {
+    ShapeDef[] shapes = strokes(400, 2);
+    shapes[150] = ShapeDef.clear(new Color(0, 0, 64, 128));
+    TiledSurface sequential = blank();
+    TiledSurface parallel = blank();
+    try {
+      for (int i = 0; i < shapes.length; i += 3) {
+        Sprite.make(shapes[i]);
+      }
+      for (ShapeDef s : shapes) {
+        s.drawOn(sequential, null);
+      }
+      parallel.drawAll(shapes);
+    } finally {
+      forget(shapes);
+    }
+    assertSame(sequential.toImage(), parallel.toImage());
+  }
+
+  // strokes across the surface in every kind of paint, including those that
+  // erase, with round and with dashed, mitred pens
+  private static ShapeDef[] strokes(int count, long seed) {
+    Color[] paints = {Color.BLUE, new Color(255, 255, 0, 128), new Color(0, 200, 0, 77),
+        TRANSPARENT, new Color(255, 0, 0, 0)};
+    SplittableRandom random = new SplittableRandom(seed);
+    ShapeDef[] shapes = new ShapeDef[count];
+    for (int i = 0; i < shapes.length; i++) {
+      float[] xy = new float[24];
+      for (int k = 0; k < xy.length; k += 2) {
+        xy[k] = 10 + random.nextFloat() * 580;
+        xy[k + 1] = 10 + random.nextFloat() * 380;
+      }
+      BasicStroke stroke = i % 2 == 0
+          ? new BasicStroke(1 + random.nextFloat() * 20, BasicStroke.CAP_ROUND,
+              BasicStroke.JOIN_ROUND)
+          : new BasicStroke(0.5f + random.nextFloat() * 10, BasicStroke.CAP_SQUARE,
+              BasicStroke.JOIN_MITER, 10, new float[] {7, 3}, 0);
+      shapes[i] = new ShapeDef(stroke, paints[i % paints.length],
+          StrokeSimplifier.toPath(xy, xy.length / 2), null);
+    }
+    return shapes;
+  }
+
+  // small tiles, so that a replay has many to share out
+  private static TiledSurface blank() {
+    TiledSurface s = new TiledSurface(600, 400, 64);
+    s.fill(new Color(255, 255, 255, 200));
+    return s;
+  }
+
+  private static void forget(ShapeDef[] shapes) {
+    for (ShapeDef s : shapes) {
+      if (!s.isClear()) {
+        Sprite.forget(s);
+      }
+    }
+  }
+
+  private static void assertSame(BufferedImage expected, BufferedImage actual) {
+    int differ = 0;
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+          differ++;
+        }
+      }
+    }
+    assertEquals(0, differ, "pixels that differ");
+  }
+}